@@ -13,13 +13,14 @@ import androidx.appcompat.app.AppCompatActivity;
 import android.util.Log;
 import android.view.Menu;
 
+import co.tinode.tindroid.db.BaseDb;
 import co.tinode.tindroid.media.VxCard;
 import co.tinode.tinodesdk.MeTopic;
 import co.tinode.tinodesdk.Tinode;
 import co.tinode.tinodesdk.Topic;
 import co.tinode.tinodesdk.model.Description;
+import co.tinode.tinodesdk.model.Fields;
 import co.tinode.tinodesdk.model.MsgServerInfo;
-import co.tinode.tinodesdk.model.MsgServerPres;
 import co.tinode.tinodesdk.model.PrivateType;
 import co.tinode.tinodesdk.model.Subscription;
 
@@ -82,6 +83,9 @@ public class ChatsActivity extends AppCompatActivity {
 
         // This will issue a subscription request.
         UiUtils.attachMeTopic(this, mMeTopicListener);
+
+        // Trim message cache in background, at most once a day.
+        BaseDb.getInstance().getStore().getCompactor().compactIfDue(tinode.getTopics());
     }
 
     private void datasetChanged() {
@@ -157,17 +161,9 @@ public class ChatsActivity extends AppCompatActivity {
         }
 
         @Override
-        public void onPres(MsgServerPres pres) {
-            if ("msg".equals(pres.what)) {
-                datasetChanged();
-            } else if ("off".equals(pres.what) || "on".equals(pres.what)) {
-                datasetChanged();
-            }
-        }
-
-        @Override
-        public void onMetaSub(final Subscription<VxCard,PrivateType> sub) {
-            if (sub.deleted == null) {
+        public void onMetaSub(final Subscription<VxCard,PrivateType> sub, int changed) {
+            // Contacts are built from public and private values only.
+            if (sub.deleted == null && (changed & (Fields.PUB | Fields.PRIV)) != 0) {
                 if (sub.pub != null) {
                     sub.pub.constructBitmap();
                 }
@@ -200,6 +196,7 @@ public class ChatsActivity extends AppCompatActivity {
 
         @Override
         public void onSubsUpdated() {
+            // Also called once per burst of presence notifications: new messages, online status, read counters.
             datasetChanged();
         }
 
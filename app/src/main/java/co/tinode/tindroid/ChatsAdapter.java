@@ -1,6 +1,5 @@
 package co.tinode.tindroid;
 
-import android.app.Activity;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Typeface;
@@ -17,6 +16,7 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
@@ -24,6 +24,7 @@ import androidx.core.content.res.ResourcesCompat;
 import androidx.recyclerview.selection.ItemDetailsLookup;
 import androidx.recyclerview.selection.ItemKeyProvider;
 import androidx.recyclerview.selection.SelectionTracker;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 import co.tinode.tindroid.db.StoredTopic;
 import co.tinode.tindroid.media.VxCard;
@@ -39,8 +40,14 @@ public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder>
     @SuppressWarnings("unused")
     private static final String TAG = "ChatsAdapter";
 
+    // Fields of the row snapshot. Online status and unread count are bound without rebinding the row.
+    private static final int FIELD_ONLINE = 0;
+    private static final int FIELD_UNREAD = 1;
+    private static final int PARTIAL_FIELDS = (1 << FIELD_ONLINE) | (1 << FIELD_UNREAD);
+
     private List<ComTopic<VxCard>> mTopics;
     private HashMap<String,Integer> mTopicIndex;
+    private final RowDiffer mDiffer = new RowDiffer(PARTIAL_FIELDS);
 
     private boolean mIsArchive;
 
@@ -63,7 +70,7 @@ public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder>
                 R.color.online, context.getTheme());
     }
 
-    void resetContent(Activity activity, final boolean archive) {
+    void resetContent(final boolean archive) {
 
         final List<ComTopic<VxCard>> newTopics = Cache.getTinode().getFilteredTopics(new TopicFilter() {
             @Override
@@ -78,16 +85,39 @@ public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder>
             newTopicIndex.put(t.getName(), newTopicIndex.size());
         }
 
-        activity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mIsArchive = archive;
-                    mTopics = newTopics;
-                    mTopicIndex = newTopicIndex;
+        // Only the changed rows are updated: presence and unread count changes don't rebind the row.
+        mDiffer.submit(newTopics, new RowDiffer.Callback<List<ComTopic<VxCard>>>() {
+            @Override
+            public List<RowDiffer.Row> snapshot(List<ComTopic<VxCard>> topics) {
+                List<RowDiffer.Row> rows = new ArrayList<>(topics.size());
+                for (ComTopic<VxCard> t : topics) {
+                    VxCard pub = t.getPub();
+                    rows.add(new RowDiffer.Row(t.getName(),
+                            t.getOnline(),
+                            t.getUnreadCount(),
+                            pub != null ? pub.fn : null,
+                            pub != null && pub.photo != null ? pub.photo.data : null,
+                            t.getComment(),
+                            t.isMuted(),
+                            t.isArchived(),
+                            t.isJoiner()));
+                }
+                return rows;
+            }
 
+            @Override
+            public void apply(List<ComTopic<VxCard>> topics, DiffUtil.DiffResult diff) {
+                mIsArchive = archive;
+                mTopics = topics;
+                mTopicIndex = newTopicIndex;
+
+                if (diff != null) {
+                    diff.dispatchUpdatesTo(ChatsAdapter.this);
+                } else {
                     notifyDataSetChanged();
                 }
-            });
+            }
+        });
     }
 
     @NonNull
@@ -108,6 +138,23 @@ public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder>
         }
     }
 
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        int mask = RowDiffer.getPartialMask(payloads);
+        if (mask == 0 || holder.viewType != R.layout.contact) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+
+        ComTopic<VxCard> topic = mTopics.get(position);
+        if ((mask & (1 << FIELD_ONLINE)) != 0) {
+            holder.bindOnline(topic);
+        }
+        if ((mask & (1 << FIELD_UNREAD)) != 0) {
+            holder.bindUnread(topic);
+        }
+    }
+
     @Override
     public long getItemId(int position) {
         if (getActualItemCount() == 0) {
@@ -239,6 +286,10 @@ public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder>
         }
 
         ItemDetailsLookup.ItemDetails<String> getItemDetails() {
+            if (details != null) {
+                // The row could have been moved without rebinding.
+                details.pos = getAdapterPosition();
+            }
             return details;
         }
 
@@ -259,20 +310,14 @@ public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder>
             }
             contactPriv.setText(topic.getComment());
 
-            int unread = topic.getUnreadCount();
-            if (unread > 0) {
-                unreadCount.setText(unread > 9 ? "9+" : String.valueOf(unread));
-                unreadCount.setVisibility(View.VISIBLE);
-            } else {
-                unreadCount.setVisibility(View.GONE);
-            }
+            bindUnread(topic);
 
             avatar.setImageDrawable(UiUtils.avatarDrawable(context,
                     pub != null ? pub.getBitmap() : null,
                     pub != null ? pub.fn : null,
                     topicName));
 
-            online.setColorFilter(topic.getOnline() ? sColorOnline : sColorOffline);
+            bindOnline(topic);
 
             muted.setVisibility(topic.isMuted() ? View.VISIBLE : View.GONE);
             archived.setVisibility(topic.isArchived() ? View.VISIBLE : View.GONE);
@@ -300,6 +345,20 @@ public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder>
                 itemView.setActivated(false);
             }
         }
+
+        void bindUnread(final ComTopic<VxCard> topic) {
+            int unread = topic.getUnreadCount();
+            if (unread > 0) {
+                unreadCount.setText(unread > 9 ? "9+" : String.valueOf(unread));
+                unreadCount.setVisibility(View.VISIBLE);
+            } else {
+                unreadCount.setVisibility(View.GONE);
+            }
+        }
+
+        void bindOnline(final ComTopic<VxCard> topic) {
+            online.setColorFilter(topic.getOnline() ? sColorOnline : sColorOffline);
+        }
     }
 
     interface ClickListener {
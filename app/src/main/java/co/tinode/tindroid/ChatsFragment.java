@@ -1,6 +1,5 @@
 package co.tinode.tindroid;
 
-import android.app.Activity;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
@@ -174,12 +173,11 @@ public class ChatsFragment extends Fragment implements ActionMode.Callback {
             mIsArchive = false;
         }
 
-        final Activity activity = getActivity();
-        if (activity == null) {
+        if (getActivity() == null) {
             return;
         }
 
-        mAdapter.resetContent(activity, mIsArchive);
+        mAdapter.resetContent(mIsArchive);
     }
 
     @Override
@@ -337,7 +335,7 @@ public class ChatsFragment extends Fragment implements ActionMode.Callback {
                             .thenApply(new PromisedReply.SuccessListener<ServerMessage>() {
                                 @Override
                                 public PromisedReply<ServerMessage> onSuccess(ServerMessage result) {
-                                    mAdapter.resetContent(activity, mIsArchive);
+                                    mAdapter.resetContent(mIsArchive);
                                     return null;
                                 }
                             })
@@ -425,10 +423,10 @@ public class ChatsFragment extends Fragment implements ActionMode.Callback {
     }
 
     /**
-     * Wraps mAdapter.notifyDataSetChanged() into runOnUiThread()
+     * Reloads the list of chats and updates the changed rows.
      */
     void datasetChanged() {
-        mAdapter.resetContent(getActivity(), mIsArchive);
+        mAdapter.resetContent(mIsArchive);
     }
 
     // TODO: Add onBackPressed handing to parent Activity.
@@ -17,11 +17,14 @@ import android.widget.ImageView;
 import android.widget.SectionIndexer;
 import android.widget.TextView;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.widget.AppCompatImageView;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 /**
@@ -34,6 +37,9 @@ class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.ViewHolder>
         implements SectionIndexer, ContactsLoaderCallback.CursorSwapper {
     private static final String TAG = "ContactsAdapter";
 
+    // Index of the contact's IM address in the row snapshot.
+    private static final int FIELD_UNIQUE = 2;
+
     private AlphabetIndexer mAlphabetIndexer; // Stores the AlphabetIndexer instance
     private TextAppearanceSpan mHighlightTextSpan; // Stores the highlight text appearance style
 
@@ -41,6 +47,9 @@ class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.ViewHolder>
     private ClickListener mClickListener;
     private Cursor mCursor;
     private ImageLoader mImageLoader;
+    // Finds changed rows. Displayed positions are translated to positions in mCursor until
+    // the changes are dispatched.
+    private final RowDiffer mDiffer = new RowDiffer(0);
 
     // Selected items
     private HashMap<String,Integer> mSelected;
@@ -85,19 +94,47 @@ class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.ViewHolder>
      */
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        if (holder.viewType == R.layout.contact_basic) {
-            holder.bind(mCursor, position);
+        if (holder.viewType == R.layout.contact_basic && mCursor != null) {
+            int pos = mDiffer.getDataPosition(position);
+            if (pos >= 0) {
+                holder.bind(mCursor, pos);
+            }
         }
     }
 
     @Override
-    public void swapCursor(Cursor newCursor, String newSearchTerm) {
-        mSearchTerm = newSearchTerm;
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        if (holder.switcher != null) {
+            // The photo is no longer needed: cancel decoding.
+            for (int i = 0; i < holder.switcher.getChildCount(); i++) {
+                mImageLoader.cancelWork((ImageView) holder.switcher.getChildAt(i));
+            }
+        }
+    }
 
-        if (newCursor == mCursor) {
+    @Override
+    public void swapCursor(Cursor newCursor, final String newSearchTerm) {
+        if (newCursor == mCursor && TextUtils.equals(newSearchTerm, mSearchTerm)) {
             return;
         }
 
+        // The new cursor is adopted right away: the loader closes the old one. Rows are read here,
+        // on UI thread, which is the only thread using the cursor.
+        List<RowDiffer.Row> rows = new ArrayList<>();
+        if (newCursor != null && newCursor.moveToFirst()) {
+            do {
+                rows.add(new RowDiffer.Row(
+                        newCursor.getString(ContactsLoaderCallback.ContactsQuery.ID),
+                        newCursor.getString(ContactsLoaderCallback.ContactsQuery.DISPLAY_NAME),
+                        newCursor.getString(ContactsLoaderCallback.ContactsQuery.PHOTO_THUMBNAIL_DATA),
+                        newCursor.getString(ContactsLoaderCallback.ContactsQuery.IM_ADDRESS),
+                        newSearchTerm,
+                        newCursor.getLong(ContactsLoaderCallback.ContactsQuery.LAST_UPDATED)));
+            } while (newCursor.moveToNext());
+        }
+
+        mSearchTerm = newSearchTerm;
+
         final Cursor oldCursor = mCursor;
 
         // Update the AlphabetIndexer with new cursor as well
@@ -105,19 +142,25 @@ class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.ViewHolder>
 
         mCursor = newCursor;
 
-        // Notify the observers about the new cursor
-        notifyDataSetChanged();
-
-        if (oldCursor != null) {
+        if (oldCursor != null && oldCursor != newCursor) {
             oldCursor.close();
         }
+
+        // Only the changed rows are updated once they are found.
+        mDiffer.submitRows(rows, new RowDiffer.RowsCallback() {
+            @Override
+            public void apply(DiffUtil.DiffResult diff) {
+                if (diff != null) {
+                    diff.dispatchUpdatesTo(ContactsAdapter.this);
+                } else {
+                    notifyDataSetChanged();
+                }
+            }
+        });
     }
 
     private int getActualItemCount() {
-        if (mCursor == null) {
-            return 0;
-        }
-        return mCursor.getCount();
+        return mDiffer.getCurrent().size();
     }
 
     @Override
@@ -140,14 +183,8 @@ class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.ViewHolder>
             return -2;
         }
 
-        if (mCursor == null) {
-            throw new IllegalStateException("Cursor is null.");
-        }
-        if (!mCursor.moveToPosition(pos)) {
-            throw new IllegalStateException("Failed to move cursor to position " + pos);
-        }
-
-        return mCursor.getLong(ContactsLoaderCallback.ContactsQuery.ID);
+        // The key of the row is the contact ID.
+        return Long.parseLong(mDiffer.getCurrent().get(pos).key);
     }
 
     /**
@@ -194,7 +231,14 @@ class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.ViewHolder>
         } else {
             mSelected.put(unique, 0);
         }
-        notifyDataSetChanged();
+
+        // Rebind only the rows of this contact.
+        List<RowDiffer.Row> rows = mDiffer.getCurrent();
+        for (int i = 0; i < rows.size(); i++) {
+            if (TextUtils.equals(unique, (String) rows.get(i).fields[FIELD_UNIQUE])) {
+                notifyItemChanged(i);
+            }
+        }
     }
 
     class ViewHolder extends RecyclerView.ViewHolder {
@@ -225,6 +269,7 @@ class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.ViewHolder>
 
             // Get the thumbnail image Uri from the current Cursor row.
             final String photoUri = cursor.getString(ContactsLoaderCallback.ContactsQuery.PHOTO_THUMBNAIL_DATA);
+            final long photoVersion = cursor.getLong(ContactsLoaderCallback.ContactsQuery.LAST_UPDATED);
             final String displayName = cursor.getString(ContactsLoaderCallback.ContactsQuery.DISPLAY_NAME);
             unique = cursor.getString(ContactsLoaderCallback.ContactsQuery.IM_ADDRESS);
 
@@ -277,7 +322,7 @@ class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.ViewHolder>
                 ImageView icon = (ImageView) switcher.getCurrentView();
                 // Clear the icon then load the thumbnail from photoUri in a background worker thread.
                 icon.setImageDrawable(UiUtils.avatarDrawable(context, null, displayName, unique));
-                mImageLoader.loadImage(context, photoUri, icon);
+                mImageLoader.loadImage(context, photoUri, photoVersion, icon);
 
                 TypedArray typedArray = itemView.getContext().obtainStyledAttributes(
                         new int[]{android.R.attr.selectableItemBackground});
@@ -296,7 +341,7 @@ class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.ViewHolder>
                             ViewHolder.this.switcher.setImageResource(R.drawable.ic_selected);
                         } else {
                             Context context = itemView.getContext();
-                            mImageLoader.loadImage(context, photoUri, (ImageView) ViewHolder.this.switcher.getNextView());
+                            mImageLoader.loadImage(context, photoUri, photoVersion, (ImageView) ViewHolder.this.switcher.getNextView());
                             ViewHolder.this.switcher.setImageDrawable(UiUtils.avatarDrawable(context, null, displayName, unique));
                         }
                     }
@@ -100,6 +100,9 @@ class ContactsLoaderCallback implements LoaderManager.LoaderCallbacks<Cursor> {
 
                 // The sort order column for the returned Cursor, used by the AlphabetIndexer
                 SORT_ORDER,
+
+                // Changes when the contact is updated, e.g. gets a new photo.
+                ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP,
         };
 
         // The query column numbers which map to each value in the projection
@@ -110,6 +113,7 @@ class ContactsLoaderCallback implements LoaderManager.LoaderCallbacks<Cursor> {
         int IM_ADDRESS = 4;
 
         int SORT_KEY = 5;
+        int LAST_UPDATED = 6;
     }
 
     interface CursorSwapper {
@@ -0,0 +1,180 @@
+package co.tinode.tindroid;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Size-bounded disk cache of small bitmaps, such as contact photos scaled to the list item size.
+ * It keeps thumbnails across restarts of the app.
+ *
+ * Each bitmap is stored compressed as WEBP in a separate file named after the hash of the key.
+ * Least recently used files are removed when the cache grows over the limit.
+ */
+class DiskBitmapCache {
+    private static final String TAG = "DiskBitmapCache";
+
+    private static final String DIR_NAME = "thumbnails";
+    // Maximum size of the cache in bytes.
+    private static final long MAX_SIZE = 10 * 1024 * 1024;
+    // WEBP quality: thumbnails are small, artifacts are not noticeable.
+    private static final int QUALITY = 80;
+
+    private static DiskBitmapCache sInstance = null;
+
+    private final File mDir;
+    // Total size of cached files or -1 if not known yet.
+    private long mSize = -1;
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+
+    private DiskBitmapCache(File dir) {
+        mDir = dir;
+    }
+
+    static synchronized DiskBitmapCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new DiskBitmapCache(new File(TindroidApp.getAppContext().getCacheDir(), DIR_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Read bitmap from disk. Must not be called on UI thread.
+     *
+     * @param key unique identifier of the bitmap.
+     * @return bitmap or null if not found.
+     */
+    Bitmap get(String key) {
+        File file = fileFor(key);
+        Bitmap bmp = file.exists() ? BitmapFactory.decodeFile(file.getPath()) : null;
+        if (bmp != null) {
+            mHits.incrementAndGet();
+            // Mark as recently used.
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+        } else {
+            mMisses.incrementAndGet();
+        }
+        return bmp;
+    }
+
+    /**
+     * Write bitmap to disk. Must not be called on UI thread.
+     *
+     * @param key unique identifier of the bitmap.
+     * @param bmp bitmap to write.
+     */
+    synchronized void put(String key, Bitmap bmp) {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.w(TAG, "Failed to create cache directory");
+            return;
+        }
+
+        File file = fileFor(key);
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            bmp.compress(Bitmap.CompressFormat.WEBP, QUALITY, out);
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write bitmap", ex);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return;
+        }
+
+        if (mSize < 0) {
+            mSize = computeSize();
+        }
+        long oldLength = file.length();
+        // Write then rename: a reader never sees a partially written file.
+        if (tmp.renameTo(file)) {
+            mSize += file.length() - oldLength;
+            trim();
+        } else {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    int getHitCount() {
+        return mHits.get();
+    }
+
+    int getMissCount() {
+        return mMisses.get();
+    }
+
+    // Remove least recently used files until the cache is 10% under the limit.
+    private void trim() {
+        if (mSize <= MAX_SIZE) {
+            return;
+        }
+
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Cache lastModified: it changes when files are read concurrently, which would break the sort.
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(modified[a], modified[b]);
+            }
+        });
+
+        long target = MAX_SIZE * 9 / 10;
+        for (Integer i : order) {
+            if (mSize <= target) {
+                break;
+            }
+            long length = files[i].length();
+            if (files[i].delete()) {
+                mSize -= length;
+            }
+        }
+    }
+
+    private long computeSize() {
+        long size = 0;
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                size += f.length();
+            }
+        }
+        return size;
+    }
+
+    private File fileFor(String key) {
+        String name;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            name = sb.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException ex) {
+            // Should not happen: SHA-1 and UTF-8 are always available.
+            name = Integer.toHexString(key.hashCode());
+        }
+        return new File(mDir, name);
+    }
+}
@@ -16,6 +16,8 @@ import com.google.android.flexbox.JustifyContent;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 
 import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
@@ -41,6 +43,8 @@ public class EditMembersFragment extends Fragment {
 
     private static final String TAG = "EditMembersFragment";
     private static final int LOADER_ID = 103;
+    // Number of current members to load at once.
+    private static final int MEMBERS_PAGE_SIZE = 50;
 
     private PromisedReply.FailureListener<ServerMessage> mFailureListener;
 
@@ -53,6 +57,15 @@ public class EditMembersFragment extends Fragment {
 
     private ContactsLoaderCallback mContactsLoaderCallback;
 
+    // Current members of the topic taken from the topic cache when the view is created.
+    private List<Subscription<VxCard, PrivateType>> mMembers;
+    // IDs of all current members, including those not shown yet.
+    private HashSet<String> mMemberIds;
+    // Number of current members shown so far.
+    private int mMembersLoaded;
+    private boolean mAllMembersLoaded;
+    private boolean mMembersPagePending;
+
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstance) {
@@ -105,40 +118,50 @@ public class EditMembersFragment extends Fragment {
         rv.setHasFixedSize(false);
 
         final Bundle args = getArguments();
-        final Tinode tinode = Cache.getTinode();
         // noinspection unchecked
-        mTopic = (ComTopic<VxCard>) tinode.getTopic(args == null ? null : args.getString("topic"));
-        final ArrayList<MembersAdapter.Member> members = new ArrayList<>();
-        boolean cancelable = false;
-        if (mTopic != null) {
-            Collection<Subscription<VxCard, PrivateType>> subs = mTopic.getSubscriptions();
-            boolean manager = mTopic.isManager();
-            for (Subscription<VxCard, PrivateType> sub : subs) {
-                mContactsAdapter.toggleSelected(sub.user);
-                String name = null;
-                Bitmap avatar = null;
-                if (sub.pub != null) {
-                    name = sub.pub.fn;
-                    avatar = sub.pub.avatar == null ? null : sub.pub.avatar.getBitmap();
-                }
-                members.add(new MembersAdapter.Member(
-                        sub.user,
-                        name,
-                        UiUtils.avatarDrawable(activity, avatar, name, sub.user),
-                        !tinode.isMe(sub.user) && manager));
-            }
-            cancelable = mTopic.isAdmin();
-        }
+        mTopic = (ComTopic<VxCard>) Cache.getTinode().getTopic(args == null ? null : args.getString("topic"));
 
-        mSelectedAdapter = new MembersAdapter(members, new MembersAdapter.ClickListener() {
+        mSelectedAdapter = new MembersAdapter(null, new MembersAdapter.ClickListener() {
             @Override
             public void onClick(String unique) {
                 // onClick is called after removing the item.
                 mContactsAdapter.toggleSelected(unique);
             }
-        }, cancelable);
+        }, mTopic != null && mTopic.isAdmin());
         rv.setAdapter(mSelectedAdapter);
 
+        // Current members are shown page by page as the list is scrolled to the end.
+        mMembers = new ArrayList<>();
+        mMemberIds = new HashSet<>();
+        Collection<Subscription<VxCard, PrivateType>> subs = mTopic != null ? mTopic.getSubscriptions() : null;
+        if (subs != null) {
+            for (Subscription<VxCard, PrivateType> sub : subs) {
+                mMembers.add(sub);
+                mMemberIds.add(sub.user);
+            }
+        }
+        mMembersLoaded = 0;
+        mAllMembersLoaded = false;
+        mMembersPagePending = false;
+        rv.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                // Also called with dx == dy == 0 when the visible range changes after layout.
+                // The adapter cannot be changed while the list is in layout: load the page later.
+                if (!mAllMembersLoaded && !mMembersPagePending && !recyclerView.canScrollVertically(1)) {
+                    mMembersPagePending = true;
+                    recyclerView.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mMembersPagePending = false;
+                            loadMembersPage(activity);
+                        }
+                    });
+                }
+            }
+        });
+        loadMembersPage(activity);
+
         // This button creates the new group.
         view.findViewById(R.id.goNext).setOnClickListener(new View.OnClickListener() {
             @Override
@@ -174,9 +197,46 @@ public class EditMembersFragment extends Fragment {
                 null, mContactsLoaderCallback);
     }
 
+    // Show the next page of current members of the topic.
+    private void loadMembersPage(Activity activity) {
+        if (mTopic == null || mAllMembersLoaded) {
+            return;
+        }
+
+        int end = Math.min(mMembers.size(), mMembersLoaded + MEMBERS_PAGE_SIZE);
+        List<Subscription<VxCard, PrivateType>> subs = mMembers.subList(mMembersLoaded, end);
+        mMembersLoaded = end;
+        mAllMembersLoaded = end == mMembers.size();
+
+        final Tinode tinode = Cache.getTinode();
+        boolean manager = mTopic.isManager();
+        ArrayList<MembersAdapter.Member> members = new ArrayList<>();
+        for (Subscription<VxCard, PrivateType> sub : subs) {
+            if (!mContactsAdapter.isSelected(sub.user)) {
+                mContactsAdapter.toggleSelected(sub.user);
+            }
+            String name = null;
+            Bitmap avatar = null;
+            if (sub.pub != null) {
+                name = sub.pub.fn;
+                avatar = sub.pub.avatar == null ? null : sub.pub.avatar.getBitmap();
+            }
+            members.add(new MembersAdapter.Member(
+                    sub.user,
+                    name,
+                    UiUtils.avatarDrawable(activity, avatar, name, sub.user),
+                    !tinode.isMe(sub.user) && manager));
+        }
+        mSelectedAdapter.appendInitial(members);
+    }
+
     private void updateContacts(final Activity activity) {
         try {
             for (String key : mSelectedAdapter.getAdded()) {
+                // A member not shown yet may have been picked from contacts: it's not new.
+                if (mMemberIds.contains(key)) {
+                    continue;
+                }
                 mTopic.invite(key, null /* use default */).thenCatch(mFailureListener);
             }
             for (String key : mSelectedAdapter.getRemoved()) {
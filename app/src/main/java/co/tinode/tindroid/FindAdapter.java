@@ -1,6 +1,5 @@
 package co.tinode.tindroid;
 
-import android.app.Activity;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Typeface;
@@ -12,6 +11,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
@@ -19,6 +19,8 @@ import java.util.List;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.AppCompatImageView;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
 import androidx.recyclerview.widget.RecyclerView;
 
 import co.tinode.tindroid.media.VxCard;
@@ -33,12 +35,20 @@ public class FindAdapter extends RecyclerView.Adapter<FindAdapter.ViewHolder>
     @SuppressWarnings("unused")
     private static final String TAG = "FindAdapter";
 
+    // Index of the contact's IM address in the row snapshot.
+    private static final int FIELD_UNIQUE = 2;
+
     private TextAppearanceSpan mHighlightTextSpan;
 
     private List<Subscription<VxCard,String[]>> mFound;
 
     private Cursor mCursor;
     private String mSearchTerm;
+
+    // Changes to each section are computed in background and only the changed rows are updated.
+    // Displayed positions of phone contacts are translated to positions in mCursor until then.
+    private final RowDiffer mCursorDiffer = new RowDiffer(0);
+    private final RowDiffer mFoundDiffer = new RowDiffer(0);
     private ImageLoader mImageLoader;
 
     private ClickListener mClickListener;
@@ -48,6 +58,7 @@ public class FindAdapter extends RecyclerView.Adapter<FindAdapter.ViewHolder>
 
         mImageLoader = imageLoader;
         mCursor = null;
+        mFound = new LinkedList<>();
 
         mClickListener = clickListener;
 
@@ -56,44 +67,88 @@ public class FindAdapter extends RecyclerView.Adapter<FindAdapter.ViewHolder>
         mHighlightTextSpan = new TextAppearanceSpan(context, R.style.searchTextHighlight);
     }
 
-    void resetFound(Activity activity, String searchTerm) {
+    void resetFound(final String searchTerm) {
         Collection c = Cache.getTinode().getFndTopic().getSubscriptions();
+        final List<Subscription<VxCard,String[]>> found;
         if (c == null) {
-            mFound = new LinkedList<>();
+            found = new LinkedList<>();
         } else {
             // noinspection unchecked
-            mFound = new LinkedList<>(c);
+            found = new LinkedList<>(c);
         }
 
-        mSearchTerm = searchTerm;
-        if (activity != null) {
-            activity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
+        mFoundDiffer.submit(found, new RowDiffer.Callback<List<Subscription<VxCard,String[]>>>() {
+            @Override
+            public List<RowDiffer.Row> snapshot(List<Subscription<VxCard,String[]>> subs) {
+                List<RowDiffer.Row> rows = new ArrayList<>(subs.size());
+                for (Subscription<VxCard,String[]> sub : subs) {
+                    VxCard pub = sub.pub;
+                    rows.add(new RowDiffer.Row(sub.getUnique(),
+                            pub != null ? pub.fn : null,
+                            pub != null && pub.photo != null ? pub.photo.data : null,
+                            sub.priv != null ? TextUtils.join(", ", sub.priv) : null));
+                }
+                return rows;
+            }
+
+            @Override
+            public void apply(List<Subscription<VxCard,String[]>> subs, DiffUtil.DiffResult diff) {
+                mFound = subs;
+                mSearchTerm = searchTerm;
+
+                if (diff != null) {
+                    // Skip both section titles and the phone contacts.
+                    int count = getCursorItemCount();
+                    diff.dispatchUpdatesTo(new SectionUpdateCallback(2 + (count == 0 ? 1 : count)));
+                } else {
                     notifyDataSetChanged();
                 }
-            });
-        }
+            }
+        });
     }
 
     @Override
-    public void swapCursor(Cursor newCursor, String searchTerm) {
-        mSearchTerm = searchTerm;
-
-        if (newCursor == mCursor) {
+    public void swapCursor(Cursor newCursor, final String searchTerm) {
+        if (newCursor == mCursor && TextUtils.equals(searchTerm, mSearchTerm)) {
             return;
         }
 
+        // The new cursor is adopted right away: the loader closes the old one. Rows are read here,
+        // on UI thread, which is the only thread using the cursor.
+        List<RowDiffer.Row> rows = new ArrayList<>();
+        if (newCursor != null && newCursor.moveToFirst()) {
+            do {
+                rows.add(new RowDiffer.Row(
+                        newCursor.getString(ContactsLoaderCallback.ContactsQuery.ID),
+                        newCursor.getString(ContactsLoaderCallback.ContactsQuery.DISPLAY_NAME),
+                        newCursor.getString(ContactsLoaderCallback.ContactsQuery.PHOTO_THUMBNAIL_DATA),
+                        newCursor.getString(ContactsLoaderCallback.ContactsQuery.IM_ADDRESS),
+                        searchTerm,
+                        newCursor.getLong(ContactsLoaderCallback.ContactsQuery.LAST_UPDATED)));
+            } while (newCursor.moveToNext());
+        }
+
+        mSearchTerm = searchTerm;
+
         final Cursor oldCursor = mCursor;
 
         mCursor = newCursor;
 
-        // Notify the observers about the new cursor
-        notifyDataSetChanged();
-
-        if (oldCursor != null) {
+        if (oldCursor != null && oldCursor != newCursor) {
             oldCursor.close();
         }
+
+        mCursorDiffer.submitRows(rows, new RowDiffer.RowsCallback() {
+            @Override
+            public void apply(DiffUtil.DiffResult diff) {
+                // Notify the observers about the changed rows. Skip the section title.
+                if (diff != null) {
+                    diff.dispatchUpdatesTo(new SectionUpdateCallback(1));
+                } else {
+                    notifyDataSetChanged();
+                }
+            }
+        });
     }
 
     @NonNull
@@ -114,7 +169,20 @@ public class FindAdapter extends RecyclerView.Adapter<FindAdapter.ViewHolder>
 
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        holder.bind(position, getItemAt(position));
+        Object item = getItemAt(position);
+        if (item == null && holder instanceof ViewHolderItem) {
+            // The phone contact is being removed.
+            return;
+        }
+        holder.bind(position, item);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        if (holder instanceof ViewHolderItem) {
+            // The photo is no longer needed: cancel decoding.
+            mImageLoader.cancelWork(((ViewHolderItem) holder).icon);
+        }
     }
 
     @Override
@@ -172,8 +240,7 @@ public class FindAdapter extends RecyclerView.Adapter<FindAdapter.ViewHolder>
             count = 1;
         } else if (position < count) {
             // Element from the cursor.
-            mCursor.moveToPosition(position);
-            String unique = mCursor.getString(ContactsLoaderCallback.ContactsQuery.IM_ADDRESS);
+            String unique = (String) mCursorDiffer.getCurrent().get(position).fields[FIELD_UNIQUE];
             return ("contact:" + unique).hashCode();
         }
 
@@ -198,13 +265,43 @@ public class FindAdapter extends RecyclerView.Adapter<FindAdapter.ViewHolder>
     }
 
     private int getCursorItemCount() {
-        return mCursor == null ? 0 : mCursor.getCount();
+        return mCursorDiffer.getCurrent().size();
     }
 
     private int getFoundItemCount() {
         return mFound.size();
     }
 
+    // Passes changes in one section to the adapter.
+    private class SectionUpdateCallback implements ListUpdateCallback {
+        // Position of the first element of the section.
+        private final int mOffset;
+
+        SectionUpdateCallback(int offset) {
+            mOffset = offset;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            notifyItemRangeInserted(position + mOffset, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            notifyItemRangeRemoved(position + mOffset, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            notifyItemMoved(fromPosition + mOffset, toPosition + mOffset);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            notifyItemRangeChanged(position + mOffset, count, payload);
+        }
+    }
+
     private Object getItemAt(int position) {
         if (position == 0) {
             // Section title 'PHONE CONTACTS';
@@ -224,8 +321,11 @@ public class FindAdapter extends RecyclerView.Adapter<FindAdapter.ViewHolder>
         } else if (position < count) {
             // One of the phone contacts. Move the cursor
             // to the correct position and return it.
-            mCursor.moveToPosition(position);
-            return mCursor;
+            int pos = mCursorDiffer.getDataPosition(position);
+            if (mCursor != null && pos >= 0 && mCursor.moveToPosition(pos)) {
+                return mCursor;
+            }
+            return null;
         }
 
         position -= count;
@@ -315,6 +415,7 @@ public class FindAdapter extends RecyclerView.Adapter<FindAdapter.ViewHolder>
 
         private void bind(int position, final Cursor cursor) {
             final String photoUri = cursor.getString(ContactsLoaderCallback.ContactsQuery.PHOTO_THUMBNAIL_DATA);
+            final long photoVersion = cursor.getLong(ContactsLoaderCallback.ContactsQuery.LAST_UPDATED);
             final String displayName = cursor.getString(ContactsLoaderCallback.ContactsQuery.DISPLAY_NAME);
             final String unique = cursor.getString(ContactsLoaderCallback.ContactsQuery.IM_ADDRESS);
 
@@ -360,7 +461,7 @@ public class FindAdapter extends RecyclerView.Adapter<FindAdapter.ViewHolder>
             // Clear the icon then load the thumbnail from photoUri in a background worker thread
             Context context = itemView.getContext();
             icon.setImageDrawable(UiUtils.avatarDrawable(context, null, displayName, unique));
-            mImageLoader.loadImage(context, photoUri, icon);
+            mImageLoader.loadImage(context, photoUri, photoVersion, icon);
 
             itemView.setOnClickListener(new View.OnClickListener() {
                 @Override
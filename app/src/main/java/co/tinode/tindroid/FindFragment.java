@@ -166,7 +166,7 @@ public class FindFragment extends Fragment {
             Toast.makeText(fragment.getContext(), R.string.action_failed, Toast.LENGTH_LONG).show();
         }
 
-        mAdapter.resetFound(getActivity(), mSearchTerm);
+        mAdapter.resetFound(mSearchTerm);
         // Refresh cursor.
         restartLoader(mSearchTerm);
     }
@@ -332,7 +332,7 @@ public class FindFragment extends Fragment {
     }
 
     private void onFindQueryResult() {
-        mAdapter.resetFound(getActivity(), mSearchTerm);
+        mAdapter.resetFound(mSearchTerm);
     }
 
     private String doSearch(String query) {
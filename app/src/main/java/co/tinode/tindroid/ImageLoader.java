@@ -1,17 +1,13 @@
 package co.tinode.tindroid;
 
 import android.content.Context;
-import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
-import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 
 import androidx.annotation.NonNull;
-import androidx.fragment.app.Fragment;
-import androidx.fragment.app.FragmentManager;
 import androidx.collection.LruCache;
 import android.widget.ImageView;
 
@@ -21,6 +17,12 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import co.tinode.tindroid.widgets.RoundImageDrawable;
 
@@ -33,27 +35,48 @@ public abstract class ImageLoader {
     private static final String TAG = "ImageLoader";
     private static final float MEMORY_PERCENT = 0.1f;
     private static final int DEFAULT_IMAGE_SIZE = 24;
+    private static final int POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    // Images are decoded by a bounded pool of threads shared by all loaders. The most recent
+    // requests are served first: they are for the views which are currently visible.
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+            30, TimeUnit.SECONDS, new LifoBlockingDeque());
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // Memory cache shared by all loaders and inline images of messages.
+    private static LruCache<String, Bitmap> sBitmapCache = null;
 
     private LruCache<String, Bitmap> mBitmapCache;
 
-    private final Object mPauseWorkLock = new Object();
+    // The following fields are accessed on UI thread only.
+    // Decoding requests in progress by key. Requests for the same image are served by the same task.
+    private final HashMap<String, DecodeTask> mInFlight = new HashMap<>();
+    // Request each view is waiting for.
+    private final WeakHashMap<ImageView, DecodeTask> mViewTasks = new WeakHashMap<>();
+    // Requests postponed while work is paused.
+    private final ArrayList<DecodeTask> mPaused = new ArrayList<>();
+
     private Bitmap mLoadingBitmap;
-    private boolean mPauseWork = false;
+    private volatile boolean mPauseWork = false;
     private int mImageSize;
     // private Resources mResources;
 
-    ImageLoader(int imageSize, FragmentManager fm) {
+    ImageLoader(int imageSize) {
         // mResources = context.getResources();
         mImageSize = imageSize > 0 ? imageSize : DEFAULT_IMAGE_SIZE;
+        mBitmapCache = getBitmapCache();
+    }
 
-        final RetainFragment retainFragment = findOrCreateRetainFragment(fm);
-        // See if we already have an ImageCache stored in RetainFragment
-        //noinspection unchecked
-        mBitmapCache = (LruCache<String, Bitmap>) retainFragment.getObject();
-        // No existing ImageCache, create one and store it in RetainFragment
-        if (mBitmapCache == null) {
+    /**
+     * Get process-wide memory cache of decoded bitmaps. The cache outlives configuration changes.
+     */
+    public static synchronized LruCache<String, Bitmap> getBitmapCache() {
+        if (sBitmapCache == null) {
             int maxSize = Math.round(MEMORY_PERCENT * Runtime.getRuntime().maxMemory() / 1024);
-            mBitmapCache = new LruCache<String, Bitmap>(maxSize) {
+            sBitmapCache = new LruCache<String, Bitmap>(maxSize) {
                 /**
                  * Measure item size in kilobytes rather than units which is more practical
                  * for a bitmap cache
@@ -64,56 +87,19 @@ public abstract class ImageLoader {
                     return bitmapSize == 0 ? 1 : bitmapSize;
                 }
             };
-            retainFragment.saveObject(mBitmapCache);
-        }
-    }
-
-    /**
-     * Cancels any pending work attached to the provided ImageView.
-     */
-    public static void cancelWork(ImageView imageView) {
-        final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
-
-        if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
-        }
-    }
-
-    /**
-     * Returns true if the current work has been canceled or if there was no work in
-     * progress on this image view.
-     * Returns false if the work in progress deals with the same data. The work is not
-     * stopped in that case.
-     */
-    private static boolean cancelPotentialWork(Object data, ImageView imageView) {
-        final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
-
-        if (bitmapWorkerTask != null) {
-            final Object bitmapData = bitmapWorkerTask.mData;
-            if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
-            } else {
-                // The same work is already in progress.
-                return false;
-            }
         }
-        return true;
+        return sBitmapCache;
     }
 
     /**
-     * @param imageView Any imageView
-     * @return Retrieve the currently active work task (if any) associated with this imageView.
-     * null if there is no such task.
+     * Cancels any pending work attached to the provided ImageView, i.e. when the view is recycled.
+     * Must be called on UI thread.
      */
-    private static BitmapWorkerTask getBitmapWorkerTask(ImageView imageView) {
-        if (imageView != null) {
-            final Drawable drawable = imageView.getDrawable();
-            if (drawable instanceof AsyncDrawable) {
-                final AsyncDrawable asyncDrawable = (AsyncDrawable) drawable;
-                return asyncDrawable.getBitmapWorkerTask();
-            }
+    void cancelWork(ImageView imageView) {
+        final DecodeTask task = mViewTasks.remove(imageView);
+        if (task != null) {
+            task.detach(imageView);
         }
-        return null;
     }
 
     /**
@@ -195,24 +181,30 @@ public abstract class ImageLoader {
     }
 
     /**
-     * Locate an existing instance of this Fragment or if not found, create and
-     * add it using FragmentManager.
-     *
-     * @param fm The FragmentManager manager to use.
-     * @return The existing instance of the Fragment or the new instance if just
-     * created.
+     * Get hit and miss counts of the memory and disk caches.
      */
-    private static RetainFragment findOrCreateRetainFragment(FragmentManager fm) {
-        // Check to see if we have retained the worker fragment.
-        RetainFragment retainFragment = (RetainFragment) fm.findFragmentByTag(TAG);
-
-        // If not retained (or first time running), we need to create and add it.
-        if (retainFragment == null) {
-            retainFragment = new RetainFragment();
-            fm.beginTransaction().add(retainFragment, TAG).commit();
-        }
+    public static String getCacheStats() {
+        LruCache<String, Bitmap> memory = getBitmapCache();
+        DiskBitmapCache disk = DiskBitmapCache.getInstance();
+        return "memory: " + memory.hitCount() + " hits, " + memory.missCount() + " misses; " +
+                "disk: " + disk.getHitCount() + " hits, " + disk.getMissCount() + " misses";
+    }
 
-        return retainFragment;
+    /**
+     * Scale bitmap down so its smaller side is equal to the image size. Decoders return bitmaps
+     * sampled down by a power of 2 which could be much bigger than needed.
+     */
+    private Bitmap scaleToImageSize(Bitmap bitmap) {
+        if (bitmap == null) {
+            return null;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int min = width < height ? width : height;
+        if (min <= mImageSize) {
+            return bitmap;
+        }
+        return Bitmap.createScaledBitmap(bitmap, width * mImageSize / min, height * mImageSize / min, true);
     }
 
     int getImageSize() {
@@ -222,29 +214,64 @@ public abstract class ImageLoader {
     /**
      * Load an image specified by the data parameter into an ImageView (override
      * {@link ImageLoader#processBitmap(Object)} to define the processing logic). If the image is
-     * found in the memory cache, it is set immediately, otherwise an {@link AsyncTask} will be
-     * created to asynchronously load the bitmap.
+     * found in the memory cache, it is set immediately, otherwise it's loaded in background.
+     * Must be called on UI thread.
      *
      * @param data      The URL of the image to download.
      * @param imageView The ImageView to bind the downloaded image to.
      */
     void loadImage(Context context, Object data, ImageView imageView) {
+        loadImage(context, data, 0, imageView);
+    }
+
+    /**
+     * Load an image which may change while its URL stays the same, like a contact's photo.
+     * Must be called on UI thread.
+     *
+     * @param data      The URL of the image to download.
+     * @param version   Version of the image content, e.g. time when the contact was last updated.
+     *                  Cached bitmaps of other versions are not used.
+     * @param imageView The ImageView to bind the downloaded image to.
+     */
+    void loadImage(Context context, Object data, long version, ImageView imageView) {
         if (data == null) {
             return;
         }
 
-        Bitmap bitmap = getBitmapFromCache(String.valueOf(data));
+        // Both cache tiers use the same key: the same image scaled to another size or an older
+        // version of it must not be found.
+        final String key = data + "#" + version + "@" + mImageSize;
+        final DecodeTask current = mViewTasks.get(imageView);
+        if (current != null) {
+            if (current.mKey.equals(key)) {
+                // The same work is already in progress.
+                return;
+            }
+            // The view was rebound to a different image.
+            mViewTasks.remove(imageView);
+            current.detach(imageView);
+        }
+
+        Bitmap bitmap = getBitmapFromCache(key);
 
         if (bitmap != null) {
             // Bitmap found in memory cache
             imageView.setImageDrawable(new RoundImageDrawable(context.getResources(), bitmap));
-        } else if (cancelPotentialWork(data, imageView)) {
-            final BitmapWorkerTask task = new BitmapWorkerTask(imageView);
-            final AsyncDrawable asyncDrawable =
-                    new AsyncDrawable(context.getResources(), mLoadingBitmap, task);
-            imageView.setImageDrawable(asyncDrawable);
-            task.execute(data);
+            return;
+        }
+
+        if (mLoadingBitmap != null) {
+            imageView.setImageDrawable(new BitmapDrawable(context.getResources(), mLoadingBitmap));
         }
+
+        DecodeTask task = mInFlight.get(key);
+        if (task == null) {
+            task = new DecodeTask(data, key);
+            mInFlight.put(key, task);
+            sExecutor.execute(task);
+        }
+        task.mTargets.add(new WeakReference<>(imageView));
+        mViewTasks.put(imageView, task);
     }
 
     /**
@@ -276,17 +303,19 @@ public abstract class ImageLoader {
      * {@link android.widget.AbsListView.OnScrollListener} to keep
      * scrolling smooth.
      * <p>
-     * If work is paused, be sure setPauseWork(false) is called again
-     * before your fragment or activity is destroyed (for example during
-     * {@link android.app.Activity#onPause()}), or there is a risk the
-     * background thread will never finish.
+     * Requests received while work is paused are postponed until
+     * setPauseWork(false) is called. Decoding threads are not blocked.
      */
     void setPauseWork(boolean pauseWork) {
-        synchronized (mPauseWorkLock) {
-            mPauseWork = pauseWork;
-            if (!mPauseWork) {
-                mPauseWorkLock.notifyAll();
+        mPauseWork = pauseWork;
+        if (!pauseWork) {
+            // Resubmit postponed requests. They were postponed as taken from the LIFO queue, i.e.
+            // the most recent first. Resubmitting from the end puts the most recent request at the
+            // head of the queue again, so it runs first.
+            for (int i = mPaused.size() - 1; i >= 0; i--) {
+                sExecutor.execute(mPaused.get(i));
             }
+            mPaused.clear();
         }
     }
 
@@ -321,152 +350,132 @@ public abstract class ImageLoader {
     }
 
     /**
-     * A custom Drawable that will be attached to the imageView while the work is in progress.
-     * Contains a reference to the actual worker task, so that it can be stopped if a new binding is
-     * required, and makes sure that only the last started worker process can bind its result,
-     * independently of the finish order.
-     */
-    private static class AsyncDrawable extends BitmapDrawable {
-        private final WeakReference<BitmapWorkerTask> bitmapWorkerTaskReference;
-
-        AsyncDrawable(Resources res, Bitmap bitmap, BitmapWorkerTask bitmapWorkerTask) {
-            super(res, bitmap);
-            bitmapWorkerTaskReference = new WeakReference<>(bitmapWorkerTask);
-        }
-
-        BitmapWorkerTask getBitmapWorkerTask() {
-            return bitmapWorkerTaskReference.get();
-        }
-    }
-
-    /**
-     * A simple non-UI Fragment that stores a single Object and is retained over configuration
-     * changes. It will be used to retain the BitmapCache object.
+     * Request to decode one image. Several views may wait for the same image.
      */
-    public static class RetainFragment extends Fragment {
-        private Object mObject;
-
-        /**
-         * Empty constructor as per the Fragment documentation
-         */
-        public RetainFragment() {
-        }
-
-        @Override
-        public void onCreate(Bundle savedInstanceState) {
-            super.onCreate(savedInstanceState);
-
-            // Make sure this Fragment is retained over a configuration change
-            setRetainInstance(true);
-        }
-
-        /**
-         * Store a single object in this Fragment.
-         *
-         * @param object The object to store
-         */
-        void saveObject(Object object) {
-            mObject = object;
-        }
-
-        /**
-         * Get the stored object.
-         *
-         * @return The stored object
-         */
-        public Object getObject() {
-            return mObject;
-        }
-    }
-
-    /**
-     * The actual AsyncTask that will asynchronously process the image.
-     */
-    private class BitmapWorkerTask extends AsyncTask<Object, Void, Bitmap> {
-        private final WeakReference<ImageView> mImageViewReference;
-        private Object mData;
-
-        BitmapWorkerTask(ImageView imageView) {
-            mImageViewReference = new WeakReference<>(imageView);
+    private class DecodeTask implements Runnable {
+        private final Object mData;
+        private final String mKey;
+        // Views waiting for the result. Accessed on UI thread only.
+        private final ArrayList<WeakReference<ImageView>> mTargets = new ArrayList<>();
+        private volatile boolean mCancelled = false;
+
+        DecodeTask(Object data, String key) {
+            mData = data;
+            mKey = key;
         }
 
         /**
          * Background processing.
          */
         @Override
-        protected Bitmap doInBackground(Object... params) {
-
-            mData = params[0];
-            final String dataString = String.valueOf(mData);
-
-            Bitmap bitmap = null;
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
 
-            // Wait here if work is paused and the task is not cancelled
-            synchronized (mPauseWorkLock) {
-                while (mPauseWork && !isCancelled()) {
-                    try {
-                        mPauseWorkLock.wait();
-                    } catch (InterruptedException ignored) {
+            if (mPauseWork) {
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        postpone();
                     }
-                }
+                });
+                return;
             }
 
-            // If the task has not been cancelled by another thread and the ImageView that was
-            // originally bound to this task is still bound back to this task and our "exit early"
-            // flag is not set, then call the main process method (as implemented by a subclass)
-            if (!isCancelled() && getAttachedImageView() != null) {
-                bitmap = processBitmap(params[0]);
+            // Check disk cache before processing the bitmap.
+            final DiskBitmapCache diskCache = DiskBitmapCache.getInstance();
+            Bitmap bitmap = diskCache.get(mKey);
+            if (bitmap == null && !mCancelled) {
+                bitmap = scaleToImageSize(processBitmap(mData));
+                if (bitmap != null) {
+                    diskCache.put(mKey, bitmap);
+                }
             }
 
-            // If the bitmap was processed and the image cache is available, then add the processed
-            // bitmap to the cache for future use. Note we don't check if the task was cancelled
-            // here, if it was, and the thread is still running, we may as well add the processed
-            // bitmap to our cache as it might be used again in the future
+            // If the bitmap was processed, add it to the cache for future use even if the task was
+            // cancelled: it may be used again soon.
             if (bitmap != null) {
-                addBitmapToCache(dataString, bitmap);
+                addBitmapToCache(mKey, bitmap);
             }
 
-            return bitmap;
+            final Bitmap result = bitmap;
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(result);
+                }
+            });
         }
 
-        /**
-         * Once the image is processed, associates it to the imageView
-         */
-        @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            // if cancel was called on this task or the "exit early" flag is set then we're done
-            if (isCancelled()) {
-                bitmap = null;
+        // Work was paused after the task was queued. Must be called on UI thread.
+        private void postpone() {
+            if (mCancelled) {
+                return;
             }
-
-            final ImageView imageView = getAttachedImageView();
-            if (bitmap != null && imageView != null) {
-                imageView.setImageDrawable(new RoundImageDrawable(imageView.getResources(), bitmap));
+            if (mPauseWork) {
+                mPaused.add(this);
+            } else {
+                sExecutor.execute(this);
             }
         }
 
-        @Override
-        protected void onCancelled(Bitmap bitmap) {
-            super.onCancelled(bitmap);
-            synchronized (mPauseWorkLock) {
-                mPauseWorkLock.notifyAll();
+        // Set the result to all views which are still waiting for it. Must be called on UI thread.
+        private void deliver(Bitmap bitmap) {
+            if (mInFlight.get(mKey) == this) {
+                mInFlight.remove(mKey);
             }
+            for (WeakReference<ImageView> ref : mTargets) {
+                final ImageView imageView = ref.get();
+                if (imageView != null && mViewTasks.get(imageView) == this) {
+                    mViewTasks.remove(imageView);
+                    if (bitmap != null && !mCancelled) {
+                        imageView.setImageDrawable(new RoundImageDrawable(imageView.getResources(), bitmap));
+                    }
+                }
+            }
+            mTargets.clear();
         }
 
-        /**
-         * Returns the ImageView associated with this task as long as the ImageView's task still
-         * points to this task as well. Returns null otherwise.
-         */
-        private ImageView getAttachedImageView() {
-            final ImageView imageView = mImageViewReference.get();
-            final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
-
-            if (this == bitmapWorkerTask) {
-                return imageView;
+        // The view no longer needs the result. Cancel the task if no other view is waiting for it.
+        // Must be called on UI thread.
+        private void detach(ImageView imageView) {
+            for (int i = mTargets.size() - 1; i >= 0; i--) {
+                final ImageView target = mTargets.get(i).get();
+                if (target == null || target == imageView) {
+                    mTargets.remove(i);
+                }
             }
 
-            return null;
+            if (mTargets.isEmpty()) {
+                mCancelled = true;
+                sExecutor.remove(this);
+                mPaused.remove(this);
+                if (mInFlight.get(mKey) == this) {
+                    mInFlight.remove(mKey);
+                }
+            }
         }
     }
 
+    /**
+     * Work queue which serves the most recently added tasks first.
+     */
+    private static class LifoBlockingDeque extends LinkedBlockingDeque<Runnable> {
+        @Override
+        public boolean offer(Runnable task) {
+            return offerFirst(task);
+        }
+
+        @Override
+        public boolean add(Runnable task) {
+            addFirst(task);
+            return true;
+        }
+
+        @Override
+        public void put(Runnable task) throws InterruptedException {
+            putFirst(task);
+        }
+    }
 }
@@ -8,7 +8,8 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -19,7 +20,8 @@ public class MembersAdapter extends RecyclerView.Adapter<MembersAdapter.ViewHold
     @SuppressWarnings("unused")
     private static final String TAG = "MembersAdapter";
 
-    private ArrayList<String> mInitialMembers;
+    // Members of the topic before editing. Large groups are loaded page by page.
+    private HashSet<String> mInitialMembers;
     private ArrayList<Member> mCurrentMembers;
 
     // mCancelable means initial items can be removed too.
@@ -34,7 +36,7 @@ public class MembersAdapter extends RecyclerView.Adapter<MembersAdapter.ViewHold
         mCancelable = cancelable;
         mOnCancel = onCancel;
 
-        mInitialMembers = new ArrayList<>();
+        mInitialMembers = new HashSet<>();
         mCurrentMembers = new ArrayList<>();
 
         if (users != null) {
@@ -91,10 +93,8 @@ public class MembersAdapter extends RecyclerView.Adapter<MembersAdapter.ViewHold
 
     boolean append(Member user) {
         // Ensure uniqueness.
-        for (int i = 0; i < mCurrentMembers.size(); i++) {
-            if (user.unique.equals(mCurrentMembers.get(i).unique)) {
-                return false;
-            }
+        if (indexOf(user.unique) >= 0) {
+            return false;
         }
 
         mCurrentMembers.add(user);
@@ -103,16 +103,44 @@ public class MembersAdapter extends RecyclerView.Adapter<MembersAdapter.ViewHold
         return true;
     }
 
-    boolean remove(@NonNull String unique) {
-        if (!mCancelable) {
-            // Check if the member is allowed to be removed.
-            for (int i = 0; i < mInitialMembers.size(); i++) {
-                if (unique.equals(mInitialMembers.get(i))) {
-                    return false;
-                }
+    /**
+     * Add the next page of existing members of the topic.
+     *
+     * @param users members to add. Those already present are skipped.
+     */
+    void appendInitial(List<Member> users) {
+        int start = mCurrentMembers.size();
+        for (Member user : users) {
+            // The user could have been added manually before the page was loaded.
+            if (mInitialMembers.add(user.unique) && indexOf(user.unique) < 0) {
+                mCurrentMembers.add(user);
             }
         }
 
+        int added = mCurrentMembers.size() - start;
+        if (start == 0) {
+            // Replace the placeholder for the empty list.
+            notifyDataSetChanged();
+        } else if (added > 0) {
+            notifyItemRangeInserted(start, added);
+        }
+    }
+
+    private int indexOf(String unique) {
+        for (int i = 0; i < mCurrentMembers.size(); i++) {
+            if (unique.equals(mCurrentMembers.get(i).unique)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    boolean remove(@NonNull String unique) {
+        if (!mCancelable && mInitialMembers.contains(unique)) {
+            // The member is not allowed to be removed.
+            return false;
+        }
+
         for (int i = 0; i < mCurrentMembers.size(); i++) {
             Member m = mCurrentMembers.get(i);
             if (unique.equals(m.unique) && m.removable) {
@@ -126,12 +154,8 @@ public class MembersAdapter extends RecyclerView.Adapter<MembersAdapter.ViewHold
 
     String[] getAdded() {
         ArrayList<String> added = new ArrayList<>();
-        HashMap<String,Object> initial = new HashMap<>();
-        for (String unique : mInitialMembers) {
-            initial.put(unique, "");
-        }
         for (Member user : mCurrentMembers) {
-            if (!initial.containsKey(user.unique)) {
+            if (!mInitialMembers.contains(user.unique)) {
                 added.add(user.unique);
             }
         }
@@ -140,14 +164,14 @@ public class MembersAdapter extends RecyclerView.Adapter<MembersAdapter.ViewHold
 
     String[] getRemoved() {
         ArrayList<String> removed = new ArrayList<>();
-        HashMap<String,Object> current = new HashMap<>();
+        HashSet<String> current = new HashSet<>();
         // Index current members by unique value.
         for (Member user : mCurrentMembers) {
-            current.put(user.unique, "");
+            current.add(user.unique);
         }
 
         for (String unique : mInitialMembers) {
-            if (!current.containsKey(unique)) {
+            if (!current.contains(unique)) {
                 removed.add(unique);
             }
         }
@@ -13,6 +13,7 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.PorterDuff;
 import android.graphics.Typeface;
+import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -28,6 +29,7 @@ import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 import androidx.appcompat.view.ActionMode;
 import androidx.appcompat.widget.AppCompatImageButton;
 import androidx.appcompat.widget.AppCompatImageView;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 import android.text.Spannable;
 import android.text.SpannableString;
@@ -62,10 +64,11 @@ import java.util.Map;
 import co.tinode.tindroid.db.BaseDb;
 import co.tinode.tindroid.db.MessageDb;
 import co.tinode.tindroid.db.StoredMessage;
+import co.tinode.tindroid.media.AvatarThumbnails;
 import co.tinode.tindroid.media.SpanFormatter;
+import co.tinode.tindroid.media.SpannedCache;
 import co.tinode.tindroid.media.VxCard;
 import co.tinode.tindroid.widgets.LetterTileDrawable;
-import co.tinode.tindroid.widgets.RoundImageDrawable;
 import co.tinode.tinodesdk.ComTopic;
 import co.tinode.tinodesdk.LargeFileHelper;
 import co.tinode.tinodesdk.PromisedReply;
@@ -110,6 +113,11 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
     private RecyclerView mRecyclerView;
 
     private Cursor mCursor;
+    // Finds changed messages when a new cursor is loaded. Displayed positions are translated
+    // to positions in mCursor until the changes are dispatched.
+    private final RowDiffer mDiffer = new RowDiffer(0);
+    // Local message ID -> displayed position of the message.
+    private final HashMap<Long, Integer> mPositions = new HashMap<>();
     private String mTopicName = null;
     private ActionMode.Callback mSelectionModeCallback;
     private ActionMode mSelectionMode;
@@ -126,6 +134,7 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
     private LongSparseArray<Integer> mLoaders;
 
     private SpanClicker mSpanFormatterClicker;
+    private SpannedCache mSpannedCache;
 
     MessagesAdapter(MessageActivity context, SwipeRefreshLayout refresher) {
         super();
@@ -191,6 +200,7 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
         };
 
         mSpanFormatterClicker = new SpanClicker();
+        mSpannedCache = new SpannedCache();
 
         verifyStoragePermissions();
     }
@@ -404,7 +414,7 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
                 (m.content.getEntReferences() != null);
 
         mSpanFormatterClicker.setPosition(position);
-        holder.mText.setText(SpanFormatter.toSpanned(holder.mText, m.content,
+        holder.mText.setText(mSpannedCache.toSpanned(holder.mText, m.getId(), m.content,
                 disableEnt ? null : mSpanFormatterClicker));
         if (SpanFormatter.hasClickableSpans(m.content)) {
             holder.mText.setLinksClickable(true);
@@ -447,8 +457,8 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
                 Bitmap avatar = sub.pub.getBitmap();
                 if (holder.mAvatar != null) {
                     if (avatar != null) {
-                        holder.mAvatar.setImageDrawable(
-                                new RoundImageDrawable(mActivity.getResources(), avatar));
+                        holder.mAvatar.setImageDrawable(new BitmapDrawable(mActivity.getResources(),
+                                AvatarThumbnails.get(mActivity.getResources(), avatar, AvatarThumbnails.LIST_ROW)));
                     } else {
                         holder.mAvatar.setImageDrawable(
                                 new LetterTileDrawable(mActivity)
@@ -525,8 +535,9 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
 
     // Must match position-to-item of getItemId.
     private StoredMessage getMessage(int position) {
-        if (mCursor != null) {
-            if (mCursor.moveToPosition(position)) {
+        if (mCursor != null && !mCursor.isClosed()) {
+            int pos = mDiffer.getDataPosition(position);
+            if (pos >= 0 && mCursor.moveToPosition(pos)) {
                 return StoredMessage.readMessage(mCursor);
             }
         }
@@ -536,32 +547,24 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
     @Override
     // Must match position-to-item of getMessage.
     public long getItemId(int position) {
-        if (mCursor != null && !mCursor.isClosed()) {
-            if (mCursor.moveToPosition(position)) {
-                return MessageDb.getLocalId(mCursor);
-            }
+        List<RowDiffer.Row> rows = mDiffer.getCurrent();
+        if (position >= 0 && position < rows.size()) {
+            return Long.parseLong(rows.get(position).key);
         }
         return View.NO_ID;
     }
 
     int getItemPositionById(long itemId, int first, int last) {
-        if (mCursor == null || mCursor.isClosed()) {
+        Integer pos = mPositions.get(itemId);
+        if (pos == null || pos < first || pos > last) {
             return -1;
         }
-
-        for (int i = first; i <= last; i++) {
-            if (mCursor.moveToPosition(i)) {
-                if (MessageDb.getLocalId(mCursor) == itemId) {
-                    return i;
-                }
-            }
-        }
-        return -1;
+        return pos;
     }
 
     @Override
     public int getItemCount() {
-        return mCursor != null ? mCursor.getCount() : 0;
+        return mDiffer.getCurrent().size();
     }
 
     private void toggleSelectionAt(int pos) {
@@ -587,9 +590,15 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
 
     void resetContent(@Nullable final String topicName) {
         if (topicName == null) {
-            boolean hard = mTopicName != null;
+            final boolean hard = mTopicName != null;
             mTopicName = null;
-            swapCursor(null, hard ? REFRESH_HARD : REFRESH_NONE);
+            // The cursor and the displayed rows are changed on UI thread only.
+            mActivity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    swapCursor(null, hard ? REFRESH_HARD : REFRESH_NONE);
+                }
+            });
         } else {
             boolean hard = !topicName.equals(mTopicName);
             mTopicName = topicName;
@@ -597,6 +606,9 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
         }
     }
 
+    // The new cursor is adopted right away: the loader closes the old one. The rows of the new cursor
+    // are compared to the displayed rows in background, then only inserted, removed and changed
+    // messages are updated.
     private void swapCursor(final Cursor cursor, final int refresh) {
         if (mCursor != null && mCursor == cursor) {
             return;
@@ -608,27 +620,54 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
             mSelectionMode = null;
         }
 
+        List<RowDiffer.Row> rows = new ArrayList<>();
+        if (cursor != null && cursor.moveToFirst()) {
+            // Messages are ordered newest first. The layout of a message depends on
+            // the sender of the next (newer) message.
+            long nextFrom = -2;
+            do {
+                long from = MessageDb.getUserId(cursor);
+                rows.add(new RowDiffer.Row(String.valueOf(MessageDb.getId(cursor)),
+                        MessageDb.getVersion(cursor), from, nextFrom));
+                nextFrom = from;
+            } while (cursor.moveToNext());
+        }
+
         Cursor oldCursor = mCursor;
         mCursor = cursor;
         if (oldCursor != null) {
             oldCursor.close();
         }
 
-        if (refresh != REFRESH_NONE) {
-            mActivity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
+        mDiffer.submitRows(rows, new RowDiffer.RowsCallback() {
+            @Override
+            public void apply(DiffUtil.DiffResult diff) {
+                List<RowDiffer.Row> rows = mDiffer.getCurrent();
+                String newest = rows.isEmpty() ? null : rows.get(0).key;
+                Integer oldNewest = newest != null ? mPositions.get(Long.parseLong(newest)) : null;
+                mPositions.clear();
+                for (int i = 0; i < rows.size(); i++) {
+                    mPositions.put(Long.parseLong(rows.get(i).key), i);
+                }
+
+                if (refresh == REFRESH_HARD) {
+                    mRecyclerView.setAdapter(MessagesAdapter.this);
+                } else if (diff != null) {
+                    diff.dispatchUpdatesTo(MessagesAdapter.this);
+                } else {
+                    notifyDataSetChanged();
+                }
+
+                if (refresh != REFRESH_NONE) {
                     mRefresher.setRefreshing(false);
-                    if (refresh == REFRESH_HARD) {
-                        mRecyclerView.setAdapter(MessagesAdapter.this);
-                    } else {
-                        notifyDataSetChanged();
-                    }
-                    if (cursor != null)
+                    // Scroll to the bottom unless the newest message is unchanged, e.g. when an
+                    // earlier page is loaded or a message status is updated.
+                    if (cursor != null && (refresh == REFRESH_HARD || diff == null || oldNewest == null || oldNewest != 0)) {
                         mRecyclerView.scrollToPosition(0);
+                    }
                 }
-            });
-        }
+            }
+        });
     }
 
     /**
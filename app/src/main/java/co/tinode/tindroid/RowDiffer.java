@@ -0,0 +1,271 @@
+package co.tinode.tindroid;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+
+/**
+ * Computes changes between two versions of a list in background, so the adapter is notified about
+ * the changed rows only instead of rebinding every visible row.
+ *
+ * Each version of the list is reduced to a snapshot: a key and the values displayed by the row.
+ * Changes are applied on UI thread in the same order the versions were submitted.
+ *
+ * Data which cannot be kept until the diff is ready, such as a cursor owned by a loader, is adopted
+ * by the adapter right away with {@link #submitRows(List, RowsCallback)}. Until the changes are
+ * dispatched, the adapter keeps reporting the displayed rows and finds their data with
+ * {@link #getDataPosition(int)}.
+ */
+class RowDiffer {
+    private static final String TAG = "RowDiffer";
+
+    // All lists are diffed by the same background thread, one at a time.
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // Fields which can be bound without rebinding the whole row.
+    private final int mPartialMask;
+
+    // The last submitted snapshot. Accessed on the background thread only.
+    private List<Row> mLast = new ArrayList<>();
+    // Snapshot currently displayed by the adapter. Accessed on UI thread only.
+    private List<Row> mCurrent = new ArrayList<>();
+    // Snapshot of the data adopted by the adapter, possibly not displayed yet. Accessed on UI thread only.
+    private List<Row> mLatest = mCurrent;
+    // Positions of mLatest rows by key. Built when needed.
+    private HashMap<String, Integer> mLatestIndex = null;
+
+    /**
+     * @param partialMask bit mask of indexes of {@link Row} fields which can be bound individually.
+     */
+    RowDiffer(int partialMask) {
+        mPartialMask = partialMask;
+    }
+
+    /**
+     * Compute changes between the previous version of the list and the new one, then apply them.
+     *
+     * @param data new version of the list.
+     * @param callback creates snapshot of the list and applies changes to the adapter.
+     */
+    <T> void submit(final T data, final Callback<T> callback) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Row> oldRows = mLast;
+                List<Row> rows;
+                DiffUtil.DiffResult diff;
+                try {
+                    rows = callback.snapshot(data);
+                    diff = DiffUtil.calculateDiff(new DiffCallback(oldRows, rows, mPartialMask));
+                } catch (RuntimeException ex) {
+                    // The data could be invalidated while reading the snapshot, e.g. a cursor closed.
+                    Log.w(TAG, "Failed to diff rows", ex);
+                    rows = new ArrayList<>();
+                    diff = null;
+                }
+                mLast = rows;
+
+                final List<Row> newRows = rows;
+                final DiffUtil.DiffResult result = diff;
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean wasEmpty = mCurrent.isEmpty();
+                        mCurrent = newRows;
+                        mLatest = newRows;
+                        mLatestIndex = null;
+                        callback.apply(data, newRows.isEmpty() || wasEmpty ? null : result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Compute changes between the previous version of the list and the new one, then apply them.
+     * The rows are read by the caller from the data it has already adopted. Must be called on UI thread.
+     *
+     * @param rows snapshot of the new version of the list.
+     * @param callback notifies the adapter of changes.
+     */
+    void submitRows(final List<Row> rows, final RowsCallback callback) {
+        mLatest = rows;
+        mLatestIndex = null;
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Row> oldRows = mLast;
+                DiffUtil.DiffResult diff;
+                try {
+                    diff = DiffUtil.calculateDiff(new DiffCallback(oldRows, rows, mPartialMask));
+                } catch (RuntimeException ex) {
+                    Log.w(TAG, "Failed to diff rows", ex);
+                    diff = null;
+                }
+                mLast = rows;
+
+                final DiffUtil.DiffResult result = diff;
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean wasEmpty = mCurrent.isEmpty();
+                        mCurrent = rows;
+                        callback.apply(rows.isEmpty() || wasEmpty ? null : result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Find position in the adopted data of a row displayed by the adapter. Must be called on UI thread.
+     *
+     * @param position position of the displayed row.
+     * @return position of the row in the data or -1 if the row is no longer present.
+     */
+    int getDataPosition(int position) {
+        if (mCurrent == mLatest) {
+            return position;
+        }
+        if (position < 0 || position >= mCurrent.size()) {
+            return -1;
+        }
+        if (mLatestIndex == null) {
+            mLatestIndex = new HashMap<>(mLatest.size());
+            for (int i = 0; i < mLatest.size(); i++) {
+                mLatestIndex.put(mLatest.get(i).key, i);
+            }
+        }
+        Integer pos = mLatestIndex.get(mCurrent.get(position).key);
+        return pos != null ? pos : -1;
+    }
+
+    /**
+     * Get snapshot of the rows currently displayed. Must be called on UI thread.
+     */
+    List<Row> getCurrent() {
+        return mCurrent;
+    }
+
+    /**
+     * Get bit mask of the changed fields from the list of payloads passed to onBindViewHolder.
+     *
+     * @return mask of changed fields or 0 if the whole row must be bound.
+     */
+    static int getPartialMask(List<Object> payloads) {
+        int mask = 0;
+        for (Object p : payloads) {
+            if (!(p instanceof Integer)) {
+                // Payload of some other origin, such as selection change.
+                return 0;
+            }
+            mask |= (Integer) p;
+        }
+        return mask;
+    }
+
+    interface Callback<T> {
+        /**
+         * Convert new version of the list to rows. Called in background.
+         */
+        List<Row> snapshot(T data);
+
+        /**
+         * Replace the content of the adapter and notify it of changes. Called on UI thread.
+         *
+         * @param data new version of the list.
+         * @param diff changes to dispatch or null if the adapter must be notified that all data changed.
+         */
+        void apply(T data, @Nullable DiffUtil.DiffResult diff);
+    }
+
+    interface RowsCallback {
+        /**
+         * Notify the adapter of changes. Called on UI thread. The displayed rows are already updated.
+         *
+         * @param diff changes to dispatch or null if the adapter must be notified that all data changed.
+         */
+        void apply(@Nullable DiffUtil.DiffResult diff);
+    }
+
+    /**
+     * Snapshot of one row: its unique key and the values it displays.
+     */
+    static class Row {
+        final String key;
+        final Object[] fields;
+
+        /**
+         * @param key unique key of the row.
+         * @param fields values displayed by the row. Arrays are compared by reference.
+         */
+        Row(@NonNull String key, Object... fields) {
+            this.key = key;
+            this.fields = fields;
+        }
+
+        // Bit mask of fields which differ from the other row.
+        int diff(Row other) {
+            int mask = 0;
+            for (int i = 0; i < fields.length; i++) {
+                Object a = fields[i], b = other.fields[i];
+                if (a == null ? b != null : !a.equals(b)) {
+                    mask |= 1 << i;
+                }
+            }
+            return mask;
+        }
+    }
+
+    private static class DiffCallback extends DiffUtil.Callback {
+        private final List<Row> mOld;
+        private final List<Row> mNew;
+        private final int mPartialMask;
+
+        DiffCallback(List<Row> oldRows, List<Row> newRows, int partialMask) {
+            mOld = oldRows;
+            mNew = newRows;
+            mPartialMask = partialMask;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPos, int newPos) {
+            return mOld.get(oldPos).key.equals(mNew.get(newPos).key);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPos, int newPos) {
+            return mOld.get(oldPos).diff(mNew.get(newPos)) == 0;
+        }
+
+        @Nullable
+        @Override
+        public Object getChangePayload(int oldPos, int newPos) {
+            int mask = mOld.get(oldPos).diff(mNew.get(newPos));
+            // Rebind the whole row if anything besides the partial fields has changed.
+            return (mask & ~mPartialMask) == 0 ? mask : null;
+        }
+    }
+}
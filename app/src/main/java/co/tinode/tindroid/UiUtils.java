@@ -20,6 +20,7 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.graphics.drawable.AnimationDrawable;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LayerDrawable;
 import android.net.Uri;
@@ -70,6 +71,7 @@ import androidx.preference.PreferenceManager;
 
 import co.tinode.tindroid.account.Utils;
 import co.tinode.tindroid.db.BaseDb;
+import co.tinode.tindroid.media.AvatarThumbnails;
 import co.tinode.tindroid.media.VxCard;
 import co.tinode.tindroid.widgets.LetterTileDrawable;
 import co.tinode.tindroid.widgets.OnlineDrawable;
@@ -150,7 +152,8 @@ public class UiUtils {
 
         Drawable avatarDrawable;
         if (avatar != null) {
-            avatarDrawable = new RoundImageDrawable(activity.getResources(), avatar);
+            avatarDrawable = new BitmapDrawable(activity.getResources(),
+                    AvatarThumbnails.get(activity.getResources(), avatar, AvatarThumbnails.TOOLBAR));
         } else {
             avatarDrawable = new LetterTileDrawable(activity)
                     .setLetterAndColor(name, uid)
@@ -486,7 +489,8 @@ public class UiUtils {
 
     static Drawable avatarDrawable(Context context, Bitmap bmp, String name, String address) {
         if (bmp != null) {
-            return new RoundImageDrawable(context.getResources(), bmp);
+            return new BitmapDrawable(context.getResources(),
+                    AvatarThumbnails.get(context.getResources(), bmp, AvatarThumbnails.LIST_ROW));
         } else {
             LetterTileDrawable drawable = new LetterTileDrawable(context);
             drawable.setContactTypeAndColor(
@@ -511,8 +515,7 @@ public class UiUtils {
             return null;
         }
 
-        ImageLoader il = new ImageLoader(getListPreferredItemHeight(parent),
-                activity.getSupportFragmentManager()) {
+        ImageLoader il = new ImageLoader(getListPreferredItemHeight(parent)) {
             @Override
             protected Bitmap processBitmap(Object data) {
                 // This gets called in a background thread and passed the data from
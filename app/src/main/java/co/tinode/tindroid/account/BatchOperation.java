@@ -6,54 +6,197 @@ import android.content.ContentResolver;
 import android.content.OperationApplicationException;
 import android.net.Uri;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class handles execution of batch mOperations on Contacts provider.
+ * <p>
+ * Batches can be applied in background with {@link #submit(OnAppliedListener)}: the next batch is
+ * built while the previous one is being applied. The size of the batch adapts to how long the
+ * provider takes to apply it. Operations of different contacts are separated by yield points,
+ * so the provider can let other clients in between contacts of a large batch.
  */
 final public class BatchOperation {
     private final static String TAG = "BatchOperation";
 
+    // Initial number of operations in a batch.
+    private static final int INITIAL_LIMIT = 50;
+    private static final int MIN_LIMIT = 10;
+    // Operations carry avatars: a larger batch risks hitting the binder transaction limit.
+    private static final int MAX_LIMIT = 200;
+    // Batches which take longer are made smaller, those taking less than half of it are made larger.
+    private static final long TARGET_LATENCY = 250;
+
+    // Batches are applied in background, each batch on its own thread.
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool();
+
     private final ContentResolver mResolver;
     // List for storing the batch mOperations
-    private final ArrayList<ContentProviderOperation> mOperations;
+    private ArrayList<ContentProviderOperation> mOperations;
+    // Allow provider to yield before the next operation: it starts a new contact.
+    private boolean mYieldNext = false;
+    // Maximum number of operations in a batch. Updated by the applier thread.
+    private volatile int mLimit = INITIAL_LIMIT;
+    // Batch currently being applied in background.
+    private Future<?> mPending = null;
 
     BatchOperation(ContentResolver resolver) {
+        this(resolver, INITIAL_LIMIT);
+    }
+
+    /**
+     * @param limit initial number of operations in a batch, e.g. the limit reached by the previous sync.
+     */
+    BatchOperation(ContentResolver resolver, int limit) {
         mResolver = resolver;
         mOperations = new ArrayList<>();
+        mLimit = Math.min(MAX_LIMIT, Math.max(MIN_LIMIT, limit));
     }
 
     public int size() {
         return mOperations.size();
     }
 
+    /**
+     * Get the current maximum number of operations in a batch.
+     */
+    int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * Check if the batch has grown large enough to be applied.
+     */
+    boolean isFull() {
+        return mOperations.size() >= mLimit;
+    }
+
+    /**
+     * Mark the start of operations of the next contact. The provider is allowed to yield
+     * before the next operation.
+     */
+    void startContact() {
+        mYieldNext = true;
+    }
+
     public void add(ContentProviderOperation cpo) {
         mOperations.add(cpo);
+        mYieldNext = false;
+    }
+
+    public void add(ContentProviderOperation.Builder builder) {
+        if (mYieldNext && !mOperations.isEmpty()) {
+            builder.withYieldAllowed(true);
+        }
+        add(builder.build());
+    }
+
+    /**
+     * Apply the batch in background. Waits for the previously submitted batch to complete first,
+     * so batches are applied in order and at most one batch is applied while the next is built.
+     *
+     * @param listener called on the applier thread once the batch is applied; may be null.
+     */
+    void submit(final OnAppliedListener listener) {
+        await();
+
+        final ArrayList<ContentProviderOperation> operations = mOperations;
+        mOperations = new ArrayList<>();
+        mYieldNext = false;
+        if (operations.isEmpty()) {
+            if (listener != null) {
+                listener.onApplied(true);
+            }
+            return;
+        }
+
+        mPending = sExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = apply(operations) != null;
+                if (listener != null) {
+                    listener.onApplied(success);
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for the batch submitted in background to be applied.
+     */
+    void await() {
+        if (mPending == null) {
+            return;
+        }
+        try {
+            mPending.get();
+        } catch (ExecutionException ex) {
+            Log.e(TAG, "storing contact data failed", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        mPending = null;
     }
 
     @SuppressWarnings("UnusedReturnValue")
     List<Uri> execute() {
+        await();
+
         List<Uri> resultUris = new ArrayList<>();
         if (mOperations.size() == 0) {
             return resultUris;
         }
-        // Apply the mOperations to the content provider
-        try {
-            ContentProviderResult[] results = mResolver.applyBatch(ContactsContract.AUTHORITY, mOperations);
-            if (results.length > 0) {
-                for (ContentProviderResult result : results) {
-                    resultUris.add(result.uri);
-                }
+        ContentProviderResult[] results = apply(mOperations);
+        if (results != null) {
+            for (ContentProviderResult result : results) {
+                resultUris.add(result.uri);
             }
-        } catch (final OperationApplicationException | RemoteException e) {
-            Log.e(TAG, "storing contact data failed", e);
         }
         mOperations.clear();
+        mYieldNext = false;
         return resultUris;
     }
-}
 
+    // Apply the operations to the content provider and adjust the size of the next batch.
+    private ContentProviderResult[] apply(ArrayList<ContentProviderOperation> operations) {
+        long start = SystemClock.elapsedRealtime();
+        ContentProviderResult[] results;
+        try {
+            results = mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+        } catch (final OperationApplicationException | RemoteException e) {
+            Log.e(TAG, "storing contact data failed", e);
+            return null;
+        }
+        long latency = SystemClock.elapsedRealtime() - start;
+
+        int limit = mLimit;
+        if (latency > TARGET_LATENCY) {
+            limit = Math.max(MIN_LIMIT, limit / 2);
+        } else if (latency < TARGET_LATENCY / 2 && operations.size() >= limit) {
+            // Grow after full batches only: a partial batch says nothing about a larger one.
+            limit = Math.min(MAX_LIMIT, limit * 2);
+        }
+        mLimit = limit;
+
+        Log.d(TAG, "Applied " + operations.size() + " operations in " + latency + " ms, next limit " + limit);
+        return results;
+    }
+
+    interface OnAppliedListener {
+        /**
+         * Called when the batch has been applied.
+         *
+         * @param success true if the provider accepted the batch.
+         */
+        void onApplied(boolean success);
+    }
+}
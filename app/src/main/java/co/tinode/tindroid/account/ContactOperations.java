@@ -82,7 +82,7 @@ class ContactOperations {
         mValues.put(RawContacts.ACCOUNT_TYPE, Utils.ACCOUNT_TYPE);
         mValues.put(RawContacts.ACCOUNT_NAME, accountName);
 
-        mBatchOperation.add(newInsertCpo(RawContacts.CONTENT_URI, mIsSyncContext).withValues(mValues).build());
+        mBatchOperation.add(newInsertCpo(RawContacts.CONTENT_URI, mIsSyncContext).withValues(mValues));
     }
 
     private ContactOperations(Context context, long rawContactId, BatchOperation batchOperation,
@@ -310,14 +310,14 @@ class ContactOperations {
             builder.withValueBackReference(Data.RAW_CONTACT_ID, mBackReference);
         }
 
-        mBatchOperation.add(builder.build());
+        mBatchOperation.add(builder);
     }
 
     /**
      * Adds an update operation into the batch
      */
     private void addUpdateOp(Uri uri) {
-        mBatchOperation.add(newUpdateCpo(uri, mIsSyncContext).withValues(mValues).build());
+        mBatchOperation.add(newUpdateCpo(uri, mIsSyncContext).withValues(mValues));
     }
 
     private static ContentProviderOperation.Builder newInsertCpo(Uri uri, boolean isSyncContext) {
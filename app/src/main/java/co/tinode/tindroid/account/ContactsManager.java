@@ -6,6 +6,8 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
@@ -14,10 +16,17 @@ import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.Settings;
+import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 
+import co.tinode.tindroid.db.BaseDb;
+import co.tinode.tindroid.db.ContactShadowDb;
 import co.tinode.tindroid.media.VxCard;
 import co.tinode.tinodesdk.model.Subscription;
 import co.tinode.tinodesdk.model.VCard;
@@ -29,12 +38,21 @@ public class ContactsManager {
     @SuppressWarnings("unused")
     private static final String TAG = "ContactManager";
 
-    private static final int BATCH_SIZE = 50;
+    // Contacts of different accounts are synced independently, contacts of the same account one at a time.
+    private static final HashMap<String, Object> sAccountLocks = new HashMap<>();
+    // Batch size limit reached by the last sync of the account: each sync starts where the previous one ended.
+    private static final HashMap<String, Integer> sBatchLimits = new HashMap<>();
 
     /**
      * Take a list of updated contacts and apply those changes to the
      * contacts database. Typically this list of contacts would have been
      * returned from the server, and we want to apply those changes locally.
+     * <p>
+     * Contacts are compared to the shadow copy of what was written to the provider before,
+     * so only new, changed and deleted contacts generate provider operations. Raw contacts
+     * of the account are listed with a single query instead of a lookup per contact.
+     * <p>
+     * Batches are applied in background while the next batch is built.
      *
      * @param context        The context of Authenticator Activity
      * @param account        The username for the account
@@ -43,12 +61,34 @@ public class ContactsManager {
      * @return the server syncState that should be used in our next
      * sync request.
      */
-    static synchronized Date updateContacts(Context context, Account account,
-                                                   Collection<Subscription<VxCard,?>> rawContacts,
-                                                   Date lastSyncMarker, boolean isSyncContext) {
+    static Date updateContacts(Context context, Account account,
+                               Collection<Subscription<VxCard,?>> rawContacts,
+                               Date lastSyncMarker, boolean isSyncContext) {
+        synchronized (getAccountLock(account)) {
+            return updateContactsLocked(context, account, rawContacts, lastSyncMarker, isSyncContext);
+        }
+    }
+
+    private static Date updateContactsLocked(Context context, Account account,
+                                             Collection<Subscription<VxCard,?>> rawContacts,
+                                             Date lastSyncMarker, boolean isSyncContext) {
         Date currentSyncMarker = lastSyncMarker;
         final ContentResolver resolver = context.getContentResolver();
-        final BatchOperation batchOperation = new BatchOperation(resolver);
+        final Integer limit;
+        synchronized (sBatchLimits) {
+            limit = sBatchLimits.get(account.name);
+        }
+        final BatchOperation batchOperation = limit != null ?
+                new BatchOperation(resolver, limit) : new BatchOperation(resolver);
+        final SQLiteDatabase db = BaseDb.getInstance().getWritableDatabase();
+
+        // Raw contacts which exist in the provider and what was written to them.
+        final HashMap<String, Long> existing = listRawContacts(resolver, account);
+        final HashMap<String, ContactShadowDb.Entry> shadow = ContactShadowDb.getAll(db, account.name);
+        // Shadow changes of the contacts in the current batch: saved once the batch is applied.
+        final List<String> pendingKeys = new ArrayList<>();
+        final List<ContactShadowDb.Entry> pendingEntries = new ArrayList<>();
+
         for (final Subscription<VxCard,?> rawContact : rawContacts) {
 
             // The server returns a timestamp with each record. On the next sync we can just
@@ -58,21 +98,101 @@ public class ContactsManager {
                 currentSyncMarker = rawContact.updated;
             }
 
-            // Send contact to database.
-            processContact(context, resolver, account, rawContact, batchOperation, isSyncContext);
+            final String unique = rawContact.getUnique();
+            final Long found = existing.get(unique);
+            final long rawContactId = found != null ? found : 0;
+            if (rawContact.deleted != null) {
+                if (rawContactId > 0) {
+                    deleteContact(rawContactId, batchOperation, isSyncContext);
+                }
+                if (shadow.containsKey(unique)) {
+                    pendingKeys.add(unique);
+                    pendingEntries.add(null);
+                }
+            } else {
+                // Merge private contacts into pub before computing the hash.
+                dedupe(rawContact);
+                final long hash = contentHash(rawContact);
+                final ContactShadowDb.Entry old = shadow.get(unique);
+                if (rawContactId > 0 && old != null && old.hash == hash &&
+                        (old.rawContactId == rawContactId || old.rawContactId == 0)) {
+                    // Unchanged. Remember the ID of a raw contact added by the previous sync.
+                    if (old.rawContactId == 0) {
+                        ContactShadowDb.put(db, account.name, unique,
+                                new ContactShadowDb.Entry(rawContactId, hash));
+                    }
+                    continue;
+                }
+
+                // Send contact to database.
+                processContact(context, resolver, account, rawContact, rawContactId,
+                        batchOperation, isSyncContext);
+                pendingKeys.add(unique);
+                pendingEntries.add(new ContactShadowDb.Entry(rawContactId, hash));
+            }
 
             // A sync adapter should batch operations on multiple contacts,
             // because it will make a dramatic performance difference.
             // (UI updates, etc)
-            if (batchOperation.size() >= BATCH_SIZE) {
-                batchOperation.execute();
+            if (batchOperation.isFull()) {
+                submitBatch(db, account, batchOperation, pendingKeys, pendingEntries);
             }
         }
-        batchOperation.execute();
+        submitBatch(db, account, batchOperation, pendingKeys, pendingEntries);
+        batchOperation.await();
+        synchronized (sBatchLimits) {
+            sBatchLimits.put(account.name, batchOperation.getLimit());
+        }
 
         return currentSyncMarker;
     }
 
+    // Apply batch to the provider in background, then save shadow entries of the contacts in the batch.
+    private static void submitBatch(final SQLiteDatabase db, final Account account, BatchOperation batchOperation,
+                                    List<String> pendingKeys, List<ContactShadowDb.Entry> pendingEntries) {
+        final List<String> keys = new ArrayList<>(pendingKeys);
+        final List<ContactShadowDb.Entry> entries = new ArrayList<>(pendingEntries);
+        pendingKeys.clear();
+        pendingEntries.clear();
+
+        batchOperation.submit(new BatchOperation.OnAppliedListener() {
+            @Override
+            public void onApplied(boolean success) {
+                // If the batch failed, the contacts stay out of date in the shadow and are written again
+                // on the next sync.
+                if (!success) {
+                    return;
+                }
+                try {
+                    db.beginTransaction();
+                    for (int i = 0; i < keys.size(); i++) {
+                        if (entries.get(i) != null) {
+                            ContactShadowDb.put(db, account.name, keys.get(i), entries.get(i));
+                        } else {
+                            ContactShadowDb.delete(db, account.name, keys.get(i));
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } catch (SQLException ex) {
+                    Log.w(TAG, "Failed to update contact shadow", ex);
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    private static Object getAccountLock(Account account) {
+        synchronized (sAccountLocks) {
+            Object lock = sAccountLocks.get(account.name);
+            if (lock == null) {
+                lock = new Object();
+                sAccountLocks.put(account.name, lock);
+            }
+            return lock;
+        }
+    }
+
     /**
      * Take a list of updated contacts and apply those changes to the
      * contacts database. Typically this list of contacts would have been
@@ -84,19 +204,33 @@ public class ContactsManager {
      * @param rawContact     The contact to update.
      * @param batchOperation Optional batch to add operation to.
      */
-    public static synchronized void processContact(Context context,
-                                                   ContentResolver resolver,
-                                                   Account account,
-                                                   Subscription<VxCard,?> rawContact,
-                                                   BatchOperation batchOperation,
-                                                   boolean isSyncContext) {
-        boolean noBatching = false;
-        if (batchOperation == null) {
-            batchOperation = new BatchOperation(resolver);
-            noBatching = true;
+    public static void processContact(Context context,
+                                      ContentResolver resolver,
+                                      Account account,
+                                      Subscription<VxCard,?> rawContact,
+                                      BatchOperation batchOperation,
+                                      boolean isSyncContext) {
+        synchronized (getAccountLock(account)) {
+            boolean noBatching = false;
+            if (batchOperation == null) {
+                batchOperation = new BatchOperation(resolver);
+                noBatching = true;
+            }
+            // Check if we have this contact in the database.
+            long rawContactId = lookupRawContact(resolver, rawContact.getUnique());
+            processContact(context, resolver, account, rawContact, rawContactId, batchOperation, isSyncContext);
+
+            if (noBatching) {
+                batchOperation.execute();
+            }
         }
-         // Check if we have this contact in the database.
-        long rawContactId = lookupRawContact(resolver, rawContact.getUnique());
+    }
+
+    // Add, update or delete contact with the known raw contact ID (0 if the contact does not exist).
+    private static void processContact(Context context, ContentResolver resolver, Account account,
+                                       Subscription<VxCard,?> rawContact, long rawContactId,
+                                       BatchOperation batchOperation, boolean isSyncContext) {
+        batchOperation.startContact();
         if (rawContact.deleted != null) {
             if (rawContactId > 0) {
                 deleteContact(rawContactId, batchOperation, isSyncContext);
@@ -109,10 +243,6 @@ public class ContactsManager {
                 addContact(context, account, rawContact, batchOperation, isSyncContext);
             }
         }
-
-        if (noBatching) {
-            batchOperation.execute();
-        }
     }
 
     /**
@@ -305,8 +435,9 @@ public class ContactsManager {
      * @param id     the unique Id for this rawContact in contacts provider, locally issued
      */
     private static void deleteContact(long id, BatchOperation batchOperation, boolean isSyncContext) {
+        batchOperation.startContact();
         batchOperation.add(ContactOperations.newDeleteCpo(
-                ContentUris.withAppendedId(RawContacts.CONTENT_URI, id), isSyncContext).build());
+                ContentUris.withAppendedId(RawContacts.CONTENT_URI, id), isSyncContext));
     }
 
     /**
@@ -356,6 +487,61 @@ public class ContactsManager {
         return rawContactId;
     }
 
+    /**
+     * Lists raw contacts of the account with a single query.
+     *
+     * @param resolver the content resolver to use
+     * @param account  the account which owns the raw contacts
+     * @return map of contact unique ID to RawContact id
+     */
+    private static HashMap<String, Long> listRawContacts(final ContentResolver resolver, final Account account) {
+        HashMap<String, Long> result = new HashMap<>();
+        final Cursor c = resolver.query(
+                AccountQuery.CONTENT_URI,
+                AccountQuery.PROJECTION,
+                AccountQuery.SELECTION,
+                new String[]{account.name},
+                null);
+
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    result.put(c.getString(AccountQuery.COLUMN_SOURCE_ID),
+                            c.getLong(AccountQuery.COLUMN_RAW_CONTACT_ID));
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        return result;
+    }
+
+    // Hash of the contact fields written to the provider.
+    private static long contentHash(Subscription<VxCard,?> rawContact) {
+        long hash = 17;
+        VxCard pub = rawContact.pub;
+        if (pub != null) {
+            hash = hash * 31 + (pub.fn != null ? pub.fn.hashCode() : 0);
+            if (pub.n != null) {
+                hash = hash * 31 + (pub.n.given != null ? pub.n.given.hashCode() : 0);
+                hash = hash * 31 + (pub.n.surname != null ? pub.n.surname.hashCode() : 0);
+            }
+            hash = hash * 31 + (pub.photo != null ? Arrays.hashCode(pub.photo.data) : 0);
+            if (pub.email != null) {
+                for (VCard.Contact email : pub.email) {
+                    hash = hash * 31 + email.toString().hashCode();
+                }
+            }
+            if (pub.tel != null) {
+                for (VCard.Contact phone : pub.tel) {
+                    hash = hash * 31 + phone.toString().hashCode();
+                }
+            }
+        }
+        return hash;
+    }
+
     /**
      * Returns the Data id a contact's profile row, or 0 if the user isn't found.
      *
@@ -477,6 +663,22 @@ public class ContactsManager {
                 RawContacts.ACCOUNT_TYPE + "='" + Utils.ACCOUNT_TYPE + "' AND " + RawContacts.SOURCE_ID + "=?";
     }
 
+    /**
+     * Constants for a query to find all raw contacts of the account.
+     */
+    final private static class AccountQuery {
+        static final String[] PROJECTION = new String[]{
+                RawContacts._ID,
+                RawContacts.SOURCE_ID
+        };
+        static final int COLUMN_RAW_CONTACT_ID = 0;
+        static final int COLUMN_SOURCE_ID = 1;
+        static final Uri CONTENT_URI = RawContacts.CONTENT_URI;
+        static final String SELECTION =
+                RawContacts.ACCOUNT_TYPE + "='" + Utils.ACCOUNT_TYPE + "' AND " +
+                        RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.DELETED + "=0";
+    }
+
     /**
      * Constants for a query to get contact data for a given rawContactId
      */
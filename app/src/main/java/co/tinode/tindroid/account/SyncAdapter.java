@@ -13,11 +13,20 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import co.tinode.tindroid.Cache;
 import co.tinode.tindroid.media.VxCard;
@@ -46,7 +55,10 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
     public static final String TAG = "SyncAdapter";
 
     private static final String ACCKEY_SYNC_MARKER = "co.tinode.tindroid.sync_marker_contacts";
-    private static final String ACCKEY_QUERY_HASH = "co.tinode.tindroid.sync_query_hash_contacts";
+    // Contacts sent to the server as the 'fnd' query by the last sync are saved to this file.
+    private static final String QUERY_FILE_PREFIX = "sync_query_contacts_";
+    // Maximum number of new contacts to look up in one query.
+    private static final int QUERY_BATCH_SIZE = 200;
 
     // Context for loading preferences
     private final Context mContext;
@@ -96,29 +108,28 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
         }
 
         // Load contacts and send them to server as fnd.Private.
+        final long start = System.currentTimeMillis();
         SparseArray<Utils.ContactHolder> contactList =
                 Utils.fetchContacts(getContext().getContentResolver(),
                         Utils.FETCH_EMAIL | Utils.FETCH_PHONE);
-        StringBuilder contactsBuilder = new StringBuilder();
+        // Sorted and de-duplicated, so the query does not change when the address book is reordered.
+        TreeSet<String> query = new TreeSet<>();
         for (int i=0; i<contactList.size(); i++) {
-            Utils.ContactHolder ch = contactList.get(contactList.keyAt(i));
-            String contact = ch.toString();
-            if (contact.length() > 0) {
-                contactsBuilder.append(contact);
-                contactsBuilder.append(",");
-            }
+            contactList.get(contactList.keyAt(i)).collect(query);
         }
 
-        if (contactsBuilder.length() > 0) {
-            String contacts = contactsBuilder.toString();
-            String oldHash = getServerQueryHash(account);
-            String newHash = Utils.hash(contacts);
+        if (query.size() > 0) {
+            String contacts = TextUtils.join(",", query);
 
-            if (!newHash.equals(oldHash)) {
-                // If the query has changed, clear the sync marker for a full sync.
-                // Otherwise we only going to get updated contacts.
-                lastSyncMarker = null;
-                setServerQueryHash(account, newHash);
+            // Contacts added since the last sync: they could match users who have not changed
+            // since the sync marker, so these are fetched in full. Removed contacts need no fetch.
+            // Contacts already in the query are fetched incrementally.
+            Set<String> oldQuery = loadQuery(account);
+            List<String> added = new ArrayList<>();
+            for (String contact : query) {
+                if (!oldQuery.contains(contact)) {
+                    added.add(contact);
+                }
             }
 
             try {
@@ -135,34 +146,26 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
                 // It throws if rejected and we just fail to sync.
                 tinode.subscribe(Tinode.TOPIC_FND, null, null).getResult();
 
-                tinode.setMeta(Tinode.TOPIC_FND,
-                        new MsgSetMeta(new MetaSetDesc(null, contacts))).getResult();
-
-                // final MsgGetMeta meta = MsgGetMeta.sub();
-                final MsgGetMeta meta = new MsgGetMeta(
-                        null,
-                        new MetaGetSub(lastSyncMarker, null),
-                        null, null, null);
-                PromisedReply<ServerMessage> future = tinode.getMeta(Tinode.TOPIC_FND, meta);
-                if (future.waitResult()) {
-                    ServerMessage<?, ?, VxCard, PrivateType> pkt = future.getResult();
-                    if (pkt.meta == null || pkt.meta.sub == null) {
-                        // Server did not return any contacts.
-                        return;
-                    }
-
-                    // Fetch the list of updated contacts.
-                    Collection<Subscription<VxCard, ?>> updated = new ArrayList<>();
-                    for (Subscription<VxCard, ?> sub : pkt.meta.sub) {
-                        if (Topic.getTopicTypeByName(sub.user) == Topic.TopicType.P2P) {
-                            // Log.d(TAG, "contact " + sub.topic + "/" + sub.with + " added to list");
-                            updated.add(sub);
-                        }
+                int fullyFetched = query.size();
+                if (lastSyncMarker != null) {
+                    fullyFetched = added.size();
+                    for (int i = 0; i < added.size(); i += QUERY_BATCH_SIZE) {
+                        String batch = TextUtils.join(",",
+                                added.subList(i, Math.min(i + QUERY_BATCH_SIZE, added.size())));
+                        // The sync marker is not advanced: it applies to the whole query.
+                        fetchContacts(tinode, account, batch, null);
                     }
-                    Date upd = ContactsManager.updateContacts(mContext, account, updated,
-                            lastSyncMarker, true);
-                    setServerSyncMarker(account, upd);
                 }
+
+                Date upd = fetchContacts(tinode, account, contacts, lastSyncMarker);
+                setServerSyncMarker(account, upd);
+                saveQuery(account, query);
+
+                // Contacts in both queries: the rest of the old query was removed.
+                int kept = query.size() - added.size();
+                Log.i(TAG, "Synced " + query.size() + " contacts, " + added.size() + " added, " +
+                        (oldQuery.size() - kept) + " removed, " + fullyFetched + " fetched in full, " +
+                        contacts.length() + " query bytes, in " + (System.currentTimeMillis() - start) + " ms");
                 success = true;
             } catch (IOException e) {
                 e.printStackTrace();
@@ -191,14 +194,73 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
-    private String getServerQueryHash(Account account) {
-        return mAccountManager.getUserData(account, ACCKEY_QUERY_HASH);
+    /**
+     * Send query to the 'fnd' topic and save the matching contacts.
+     *
+     * @param query comma-separated list of contacts to look up.
+     * @param since fetch only contacts updated after this time or all if null.
+     * @return latest update time of the fetched contacts.
+     */
+    @SuppressWarnings("unchecked")
+    private Date fetchContacts(Tinode tinode, Account account, String query, Date since) throws Exception {
+        tinode.setMeta(Tinode.TOPIC_FND,
+                new MsgSetMeta(new MetaSetDesc(null, query))).getResult();
+
+        final MsgGetMeta meta = new MsgGetMeta(
+                null,
+                new MetaGetSub(since, null),
+                null, null, null);
+        PromisedReply<ServerMessage> future = tinode.getMeta(Tinode.TOPIC_FND, meta);
+        if (future.waitResult()) {
+            ServerMessage<?, ?, VxCard, PrivateType> pkt = future.getResult();
+            if (pkt.meta == null || pkt.meta.sub == null) {
+                // Server did not return any contacts.
+                return since;
+            }
+
+            // Fetch the list of updated contacts.
+            Collection<Subscription<VxCard, ?>> updated = new ArrayList<>();
+            for (Subscription<VxCard, ?> sub : pkt.meta.sub) {
+                if (Topic.getTopicTypeByName(sub.user) == Topic.TopicType.P2P) {
+                    updated.add(sub);
+                }
+            }
+            return ContactsManager.updateContacts(mContext, account, updated, since, true);
+        }
+        return since;
     }
 
-    private void setServerQueryHash(Account account, String hash) {
-        // The hash could be empty if user has no contacts
-        if (hash != null && !hash.equals("")) {
-            mAccountManager.setUserData(account, ACCKEY_QUERY_HASH, hash);
+    private File getQueryFile(Account account) {
+        return new File(mContext.getFilesDir(), QUERY_FILE_PREFIX + Utils.hash(account.name));
+    }
+
+    // Load contacts sent to the server by the last successful sync, one per line.
+    private Set<String> loadQuery(Account account) {
+        Set<String> query = new HashSet<>();
+        File file = getQueryFile(account);
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    query.add(line);
+                }
+            } catch (IOException ex) {
+                Log.w(TAG, "Failed to read saved query", ex);
+                // Treat all contacts as new.
+                query.clear();
+            }
+        }
+        return query;
+    }
+
+    private void saveQuery(Account account, Set<String> query) {
+        try (Writer writer = new FileWriter(getQueryFile(account))) {
+            for (String contact : query) {
+                writer.write(contact);
+                writer.write('\n');
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to save query", ex);
         }
     }
 
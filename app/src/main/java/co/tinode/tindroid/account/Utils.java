@@ -14,6 +14,7 @@ import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -250,6 +251,23 @@ public class Utils {
             }
         }
 
+        private static void collect(List<String> vals, String label, Collection<String> into) {
+            if (vals != null) {
+                for (String entry : vals) {
+                    into.add(label + entry);
+                }
+            }
+        }
+
+        /**
+         * Add contacts as labeled strings, same as in {@link #toString()}, to a collection.
+         */
+        void collect(Collection<String> into) {
+            collect(emails, TAG_LABEL_EMAIL, into);
+            collect(phones, TAG_LABEL_PHONE, into);
+            collect(ims, TAG_LABEL_TINODE, into);
+        }
+
         void putEmail(String email) {
             if (emails == null) {
                 emails = new LinkedList<>();
@@ -0,0 +1,207 @@
+package co.tinode.tindroid.db;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.collection.LruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import co.tinode.tindroid.TindroidApp;
+
+/**
+ * Content-addressed store of avatar images. Avatars are kept in files named after the SHA-1 of the
+ * content, so cards of topics and users keep only the hash in the database. The same image is stored
+ * once no matter how many cards use it.
+ *
+ * Recently used images are kept in memory: cards read from the database share the same byte array.
+ */
+public class AvatarStore {
+    private static final String TAG = "AvatarStore";
+
+    private static final String DIR_NAME = "avatars";
+    // Size of memory cache in bytes.
+    private static final int MEMORY_CACHE_SIZE = 2 * 1024 * 1024;
+    // Unreferenced files are not removed until they are this old: the reference may not be committed yet.
+    private static final long SWEEP_GRACE_PERIOD = 3600 * 1000L;
+
+    // Field of the serialized card with the avatar hash, see VxCard.
+    private static final String REF_FIELD_NAME = "photoRef";
+    private static final Pattern REF_PATTERN = Pattern.compile("\"" + REF_FIELD_NAME + "\":\"([0-9a-f]{40})\"");
+
+    private static final LruCache<String, byte[]> sCache = new LruCache<String, byte[]>(MEMORY_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(@NonNull String key, @NonNull byte[] value) {
+            return value.length;
+        }
+    };
+
+    /**
+     * Object which keeps its avatar in the store while it's saved in the database.
+     */
+    public interface Holder {
+        /**
+         * Get a copy of the object with the avatar replaced by a reference to the store.
+         *
+         * @return copy of the object or the object itself if it has no avatar.
+         */
+        Object detachAvatar();
+
+        /**
+         * Replace the reference with the avatar after the object is read from the database.
+         */
+        void attachAvatar();
+    }
+
+    private static File getDir() {
+        return new File(TindroidApp.getAppContext().getFilesDir(), DIR_NAME);
+    }
+
+    /**
+     * Save image to the store.
+     *
+     * @param bits image content.
+     * @return hash of the image or null if the image could not be saved.
+     */
+    public static String put(byte[] bits) {
+        if (bits == null) {
+            return null;
+        }
+
+        String hash = hash(bits);
+        if (hash == null) {
+            return null;
+        }
+
+        File dir = getDir();
+        File file = new File(dir, hash);
+        if (!file.exists()) {
+            if (!dir.exists() && !dir.mkdirs()) {
+                Log.w(TAG, "Failed to create avatar directory");
+                return null;
+            }
+            // Write then rename: a reader never sees a partially written file.
+            File tmp = new File(dir, hash + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(bits);
+            } catch (IOException ex) {
+                Log.w(TAG, "Failed to save avatar", ex);
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+                return null;
+            }
+            if (!tmp.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+                return null;
+            }
+        }
+        sCache.put(hash, bits);
+        return hash;
+    }
+
+    /**
+     * Get image by hash.
+     *
+     * @param hash hash returned by {@link #put(byte[])}.
+     * @return image content or null if not found.
+     */
+    public static byte[] get(String hash) {
+        if (hash == null) {
+            return null;
+        }
+
+        byte[] bits = sCache.get(hash);
+        if (bits != null) {
+            return bits;
+        }
+
+        File file = new File(getDir(), hash);
+        if (!file.exists()) {
+            return null;
+        }
+        bits = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            int count;
+            while (offset < bits.length && (count = in.read(bits, offset, bits.length - offset)) > 0) {
+                offset += count;
+            }
+            if (offset < bits.length) {
+                return null;
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to read avatar", ex);
+            return null;
+        }
+        sCache.put(hash, bits);
+        return bits;
+    }
+
+    /**
+     * Remove images which are no longer referenced by topics or users.
+     *
+     * @param db database to look for references in.
+     */
+    static void sweep(SQLiteDatabase db) {
+        File[] files = getDir().listFiles();
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        HashSet<String> referenced = new HashSet<>();
+        String sql = "SELECT " + TopicDb.COLUMN_NAME_PUBLIC + " FROM " + TopicDb.TABLE_NAME +
+                " WHERE " + TopicDb.COLUMN_NAME_PUBLIC + " LIKE '%" + REF_FIELD_NAME + "%'" +
+                " UNION ALL " +
+                "SELECT " + UserDb.COLUMN_NAME_PUBLIC + " FROM " + UserDb.TABLE_NAME +
+                " WHERE " + UserDb.COLUMN_NAME_PUBLIC + " LIKE '%" + REF_FIELD_NAME + "%'";
+        try (Cursor c = db.rawQuery(sql, null)) {
+            while (c.moveToNext()) {
+                String pub = c.getString(0);
+                if (pub != null) {
+                    Matcher m = REF_PATTERN.matcher(pub);
+                    while (m.find()) {
+                        referenced.add(m.group(1));
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to collect avatar references", ex);
+            return;
+        }
+
+        long cutoff = System.currentTimeMillis() - SWEEP_GRACE_PERIOD;
+        for (File file : files) {
+            if (!referenced.contains(file.getName()) && file.lastModified() < cutoff) {
+                sCache.remove(file.getName());
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private static String hash(byte[] bits) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bits);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            Log.w(TAG, "SHA-1 is not available", ex);
+            return null;
+        }
+    }
+}
@@ -1,9 +1,9 @@
 package co.tinode.tindroid.db;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteTransactionListener;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.util.Log;
@@ -24,13 +24,18 @@ public class BaseDb extends SQLiteOpenHelper {
     /**
      * Schema version. Increment on schema changes.
      */
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 9;
 
     /**
      * Filename for SQLite file.
      */
     private static final String DATABASE_NAME = "base.db";
 
+    /**
+     * Number of compiled statements cached by each connection, maximum is 100.
+     */
+    private static final int SQL_CACHE_SIZE = 64;
+
     /**
      * Content provider authority.
      */
@@ -65,11 +70,15 @@ public class BaseDb extends SQLiteOpenHelper {
 
     private SqlStore mStore = null;
 
+    private volatile StatementPool mStatements = null;
+
     /**
      * Private constructor
      */
     private BaseDb(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Write-ahead log lets readers proceed concurrently with the writer.
+        setWriteAheadLoggingEnabled(true);
     }
 
     /**
@@ -88,12 +97,16 @@ public class BaseDb extends SQLiteOpenHelper {
 
     /**
      * Serializes object as "canonical_class_name;json_representation of content".
+     * Avatars of {@link AvatarStore.Holder} objects are saved to the {@link AvatarStore}.
      *
      * @param obj object to serialize
      * @return string representation of the object.
      */
     static String serialize(Object obj) {
         if (obj != null) {
+            if (obj instanceof AvatarStore.Holder) {
+                obj = ((AvatarStore.Holder) obj).detachAvatar();
+            }
             try {
                 return obj.getClass().getCanonicalName() + ";" + Tinode.jsonSerialize(obj);
             } catch (JsonProcessingException ex) {
@@ -113,7 +126,11 @@ public class BaseDb extends SQLiteOpenHelper {
         if (input != null) {
             try {
                 String[] parts = input.split(";", 2);
-                return Tinode.jsonDeserialize(parts[1], parts[0]);
+                T result = Tinode.jsonDeserialize(parts[1], parts[0]);
+                if (result instanceof AvatarStore.Holder) {
+                    ((AvatarStore.Holder) result).attachAvatar();
+                }
+                return result;
             } catch (ClassCastException ex) {
                 Log.w(TAG, "Failed to de-serialize", ex);
             }
@@ -121,32 +138,13 @@ public class BaseDb extends SQLiteOpenHelper {
         return null;
     }
 
-    static String serializeMode(Acs acs) {
-        String result = "";
-        if (acs != null) {
-            String val = acs.getMode();
-            result = val != null ? val + "," : ",";
-
-            val = acs.getWant();
-            result += val != null ? val + "," : ",";
-
-            val = acs.getGiven();
-            result += val != null ? val : "";
-        }
-        return result;
+    // Access mode is stored packed into a single integer, see Acs.pack().
+    static int serializeMode(Acs acs) {
+        return acs != null ? acs.pack() : 0;
     }
 
-    static Acs deserializeMode(String m) {
-        Acs result = new Acs();
-        if (m != null) {
-            String[] parts = m.split(",");
-            if (parts.length == 3) {
-                result.setMode(parts[0]);
-                result.setWant(parts[1]);
-                result.setGiven(parts[2]);
-            }
-        }
-        return result;
+    static Acs deserializeMode(int m) {
+        return Acs.unpack(m);
     }
 
     static String serializeDefacs(Defacs da) {
@@ -195,10 +193,44 @@ public class BaseDb extends SQLiteOpenHelper {
         return result;
     }
 
-    static boolean updateCounter(SQLiteDatabase db, String table, String column, long id, int counter) {
-        ContentValues values = new ContentValues();
-        values.put(column, counter);
-        return db.update(table, values, BaseColumns._ID + "=" + id + " AND " + column + "<" + counter, null) > 0;
+    /**
+     * Build SQL statement which increases the counter column of the given row.
+     * Parameters: new counter value, row _id, new counter value.
+     */
+    static String counterUpdateSql(String table, String column) {
+        return "UPDATE " + table + " SET " + column + "=?" +
+                " WHERE " + BaseColumns._ID + "=? AND " + column + "<?";
+    }
+
+    /**
+     * Update counter if the new value is greater than the current one.
+     *
+     * @param sql statement created by {@link #counterUpdateSql(String, String)}
+     */
+    static boolean updateCounter(SQLiteDatabase db, String sql, long id, int counter) {
+        return getStatements(db).executeUpdateDelete(sql, counter, id, counter) > 0;
+    }
+
+    /**
+     * Get cache of precompiled statements for the given database connection.
+     */
+    static StatementPool getStatements(SQLiteDatabase db) {
+        BaseDb dbh = getInstance();
+        StatementPool pool = dbh.mStatements;
+        if (pool == null || !pool.isFor(db)) {
+            synchronized (dbh) {
+                pool = dbh.mStatements;
+                if (pool == null || !pool.isFor(db)) {
+                    if (pool != null) {
+                        // Statements of the previous connection are no longer usable.
+                        pool.close();
+                    }
+                    pool = new StatementPool(db);
+                    dbh.mStatements = pool;
+                }
+            }
+        }
+        return pool;
     }
 
     static boolean isMe(String uid) {
@@ -212,16 +244,48 @@ public class BaseDb extends SQLiteOpenHelper {
     public void setUid(String uid) {
         if (uid == null) {
             mAcc = null;
+            clearIdCaches();
+            // Contacts synced for the old account are not valid anymore.
+            ContactShadowDb.deleteAll(sInstance.getWritableDatabase());
         } else {
             if (mAcc == null) {
                 mAcc = AccountDb.addOrActivateAccount(sInstance.getReadableDatabase(), uid);
+                clearIdCaches();
             } else if (!mAcc.uid.equals(uid)) {
                 AccountDb.deactivateAll(sInstance.getWritableDatabase());
                 mAcc = AccountDb.addOrActivateAccount(sInstance.getReadableDatabase(), uid);
+                clearIdCaches();
             }
         }
     }
 
+    /**
+     * Rows inserted in a transaction which is rolled back no longer exist, but their IDs may have been
+     * cached already. Transactions which may insert topics or users are started with this listener.
+     */
+    static final SQLiteTransactionListener ID_CACHE_GUARD = new SQLiteTransactionListener() {
+        @Override
+        public void onBegin() {
+        }
+
+        @Override
+        public void onCommit() {
+        }
+
+        @Override
+        public void onRollback() {
+            clearIdCaches();
+        }
+    };
+
+    /**
+     * Cached topic and user IDs are valid for one account only.
+     */
+    private static void clearIdCaches() {
+        TopicDb.clearIdCache();
+        UserDb.clearIdCache();
+    }
+
     public void logout() {
         AccountDb.deactivateAll(sInstance.getWritableDatabase());
         setUid(null);
@@ -246,6 +310,9 @@ public class BaseDb extends SQLiteOpenHelper {
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        // Let MessageCompactor return freed pages to the file system. Must be set before the first
+        // table is created. Existing databases are converted by MessageCompactor.
+        db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
         db.execSQL(AccountDb.CREATE_TABLE);
         db.execSQL(AccountDb.CREATE_INDEX_1);
         db.execSQL(AccountDb.CREATE_INDEX_2);
@@ -257,11 +324,20 @@ public class BaseDb extends SQLiteOpenHelper {
         db.execSQL(SubscriberDb.CREATE_INDEX);
         db.execSQL(MessageDb.CREATE_TABLE);
         db.execSQL(MessageDb.CREATE_INDEX);
+        MessageSearchDb.createTable(db);
+        db.execSQL(MessageSearchDb.CREATE_TRIGGER);
+        db.execSQL(ContactShadowDb.CREATE_TABLE);
+        db.execSQL(ContactShadowDb.CREATE_INDEX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // This is just a cache. Drop then re-fetch everything from the server.
+        clearIdCaches();
+        db.execSQL(ContactShadowDb.DROP_INDEX);
+        db.execSQL(ContactShadowDb.DROP_TABLE);
+        db.execSQL(MessageSearchDb.DROP_TRIGGER);
+        db.execSQL(MessageSearchDb.DROP_TABLE);
         db.execSQL(MessageDb.DROP_INDEX);
         db.execSQL(MessageDb.DROP_TABLE);
         db.execSQL(SubscriberDb.DROP_INDEX);
@@ -279,5 +355,7 @@ public class BaseDb extends SQLiteOpenHelper {
     @Override
     public void onConfigure(SQLiteDatabase db) {
         db.setForeignKeyConstraintsEnabled(true);
+        // Keep more compiled statements per connection: see StatementPool.
+        db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
     }
 }
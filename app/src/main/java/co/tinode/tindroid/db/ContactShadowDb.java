@@ -0,0 +1,120 @@
+package co.tinode.tindroid.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+
+import java.util.HashMap;
+
+/**
+ * Shadow copy of contacts synced to the Contacts provider: which raw contact holds each Tinode
+ * contact and a hash of the content written to it. Lets the contacts sync skip unchanged contacts
+ * without querying the provider.
+ * Schema:
+ *  _ID -- row ID
+ *  account -- name of the Android account which owns the raw contact
+ *  uniq -- server-issued unique ID of the contact
+ *  raw_contact_id -- ID of the raw contact in the Contacts provider or 0 if not known yet
+ *  hash -- hash of the content of the contact
+ */
+public class ContactShadowDb implements BaseColumns {
+    static final String TABLE_NAME = "contact_shadow";
+
+    private static final String COLUMN_NAME_ACCOUNT = "account";
+    private static final String COLUMN_NAME_UNIQUE = "uniq";
+    private static final String COLUMN_NAME_RAW_CONTACT_ID = "raw_contact_id";
+    private static final String COLUMN_NAME_HASH = "hash";
+
+    private static final String INDEX_NAME = "contact_shadow_account_uniq";
+
+    /**
+     * SQL statement to create the table
+     */
+    static final String CREATE_TABLE =
+            "CREATE TABLE " + TABLE_NAME + " (" +
+                    _ID + " INTEGER PRIMARY KEY," +
+                    COLUMN_NAME_ACCOUNT + " TEXT," +
+                    COLUMN_NAME_UNIQUE + " TEXT," +
+                    COLUMN_NAME_RAW_CONTACT_ID + " INTEGER," +
+                    COLUMN_NAME_HASH + " INTEGER)";
+    /**
+     * Add unique index on account and contact ID
+     */
+    static final String CREATE_INDEX =
+            "CREATE UNIQUE INDEX " + INDEX_NAME +
+                    " ON " + TABLE_NAME + " (" +
+                    COLUMN_NAME_ACCOUNT + "," + COLUMN_NAME_UNIQUE + ")";
+
+    /**
+     * SQL statements to drop the table and index
+     */
+    static final String DROP_TABLE =
+            "DROP TABLE IF EXISTS " + TABLE_NAME;
+    static final String DROP_INDEX =
+            "DROP INDEX IF EXISTS " + INDEX_NAME;
+
+    /**
+     * Load all shadow entries of the account.
+     *
+     * @param db      database to use.
+     * @param account name of the Android account.
+     * @return map of contact unique ID to its entry.
+     */
+    public static HashMap<String, Entry> getAll(SQLiteDatabase db, String account) {
+        HashMap<String, Entry> result = new HashMap<>();
+        Cursor c = db.query(TABLE_NAME,
+                new String[]{COLUMN_NAME_UNIQUE, COLUMN_NAME_RAW_CONTACT_ID, COLUMN_NAME_HASH},
+                COLUMN_NAME_ACCOUNT + "=?", new String[]{account},
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                result.put(c.getString(0), new Entry(c.getLong(1), c.getLong(2)));
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    /**
+     * Save or replace shadow entry of a contact.
+     */
+    public static void put(SQLiteDatabase db, String account, String unique, Entry entry) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME_ACCOUNT, account);
+        values.put(COLUMN_NAME_UNIQUE, unique);
+        values.put(COLUMN_NAME_RAW_CONTACT_ID, entry.rawContactId);
+        values.put(COLUMN_NAME_HASH, entry.hash);
+        db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Delete shadow entry of a contact.
+     */
+    public static void delete(SQLiteDatabase db, String account, String unique) {
+        db.delete(TABLE_NAME, COLUMN_NAME_ACCOUNT + "=? AND " + COLUMN_NAME_UNIQUE + "=?",
+                new String[]{account, unique});
+    }
+
+    /**
+     * Delete shadow entries of all accounts.
+     */
+    public static void deleteAll(SQLiteDatabase db) {
+        db.delete(TABLE_NAME, null, null);
+    }
+
+    /**
+     * State of a contact as it was last written to the Contacts provider.
+     */
+    public static class Entry {
+        // Raw contact ID or 0 if not known yet.
+        public final long rawContactId;
+        public final long hash;
+
+        public Entry(long rawContactId, long hash) {
+            this.rawContactId = rawContactId;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package co.tinode.tindroid.db;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import co.tinode.tinodesdk.PromisedReply;
+
+/**
+ * Serialized writer: database mutations are queued and executed in order on a single background thread.
+ *
+ * Consecutive single-statement mutations are committed together in one transaction (group commit).
+ * Mutations which manage their own transactions are executed one at a time: if one of them fails,
+ * it must not roll back the work of the others.
+ */
+class DbWriter {
+    private static final String TAG = "DbWriter";
+
+    // Maximum number of mutations to commit in one transaction.
+    private static final int MAX_GROUP_SIZE = 64;
+
+    private final BaseDb mDbh;
+    private final LinkedBlockingQueue<Job<?>> mQueue = new LinkedBlockingQueue<>();
+
+    DbWriter(BaseDb dbh) {
+        mDbh = dbh;
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "db-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue mutation which executes a single statement and does not start a transaction.
+     * It may be committed together with other such mutations.
+     *
+     * @param mutation mutation to execute
+     * @return promise resolved with the result of the mutation after it's committed.
+     */
+    <T> PromisedReply<T> submit(Callable<T> mutation) {
+        return enqueue(mutation, true);
+    }
+
+    /**
+     * Queue mutation which runs its own transaction. It will be committed separately.
+     *
+     * @param mutation mutation to execute
+     * @return promise resolved with the result of the mutation after it's committed.
+     */
+    <T> PromisedReply<T> submitTransaction(Callable<T> mutation) {
+        return enqueue(mutation, false);
+    }
+
+    private <T> PromisedReply<T> enqueue(Callable<T> mutation, boolean groupable) {
+        Job<T> job = new Job<>(mutation, groupable);
+        mQueue.add(job);
+        return job.promise;
+    }
+
+    private void loop() {
+        ArrayList<Job<?>> group = new ArrayList<>();
+        while (true) {
+            Job<?> job;
+            try {
+                job = mQueue.take();
+            } catch (InterruptedException ignored) {
+                return;
+            }
+
+            if (!job.groupable) {
+                job.run();
+                job.complete(null);
+                continue;
+            }
+
+            // Collect the following groupable mutations which are already waiting.
+            group.add(job);
+            Job<?> next;
+            while (group.size() < MAX_GROUP_SIZE && (next = mQueue.peek()) != null && next.groupable) {
+                group.add(mQueue.poll());
+            }
+
+            runGroup(group);
+            group.clear();
+        }
+    }
+
+    // Execute all mutations of the group in one transaction.
+    private void runGroup(ArrayList<Job<?>> group) {
+        SQLException commitError = null;
+        SQLiteDatabase db = mDbh.getWritableDatabase();
+        try {
+            db.beginTransactionWithListenerNonExclusive(BaseDb.ID_CACHE_GUARD);
+            try {
+                for (Job<?> job : group) {
+                    // Failure of a single statement does not abort the transaction.
+                    job.run();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to commit " + group.size() + " mutations", ex);
+            commitError = ex;
+        }
+
+        for (Job<?> job : group) {
+            job.complete(commitError);
+        }
+    }
+
+    private static class Job<T> {
+        final Callable<T> mutation;
+        final boolean groupable;
+        final PromisedReply<T> promise = new PromisedReply<>();
+
+        T result = null;
+        Exception error = null;
+
+        Job(Callable<T> mutation, boolean groupable) {
+            this.mutation = mutation;
+            this.groupable = groupable;
+        }
+
+        void run() {
+            try {
+                result = mutation.call();
+            } catch (Exception ex) {
+                error = ex;
+            }
+        }
+
+        void complete(Exception commitError) {
+            Exception err = commitError != null ? commitError : error;
+            try {
+                if (err == null) {
+                    promise.resolve(result);
+                } else {
+                    promise.reject(err);
+                }
+            } catch (Exception ex) {
+                // Rejected promise without a failure listener rethrows the exception.
+                Log.w(TAG, "Unhandled exception in storage mutation", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package co.tinode.tindroid.db;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+
+import co.tinode.tinodesdk.PromisedReply;
+import co.tinode.tinodesdk.Topic;
+
+/**
+ * Keeps the local message cache bounded: removes old synced messages according to per-topic
+ * retention policies and returns the freed pages to the file system.
+ *
+ * Removed messages are not lost: the lower bound of cached messages is moved up, so the messages
+ * are fetched from the server again when the user scrolls back in history.
+ *
+ * Unsent messages and messages pending deletion are never removed. Deleted messages are removed
+ * from cache as soon as the server acknowledges the deletion.
+ *
+ * Avatars no longer referenced by any topic or user are removed from the {@link AvatarStore}.
+ */
+public class MessageCompactor {
+    private static final String TAG = "MessageCompactor";
+
+    // Minimum interval between two automatic compactions: once a day.
+    private static final long COMPACTION_INTERVAL = 24 * 3600 * 1000L;
+
+    // Value of PRAGMA auto_vacuum which enables incremental vacuum.
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final BaseDb mDbh;
+    private final DbWriter mWriter;
+
+    private final HashMap<String, RetentionPolicy> mPolicies = new HashMap<>();
+    // By default keep 2000 most recent messages of every topic regardless of age.
+    private RetentionPolicy mDefaultPolicy = new RetentionPolicy(2000, 0);
+    private long mLastRun = 0;
+
+    MessageCompactor(BaseDb dbh, DbWriter writer) {
+        mDbh = dbh;
+        mWriter = writer;
+    }
+
+    /**
+     * Set retention policy for topics which have no policy of their own.
+     */
+    public synchronized void setDefaultPolicy(RetentionPolicy policy) {
+        mDefaultPolicy = policy;
+    }
+
+    /**
+     * Set retention policy for one topic.
+     *
+     * @param topicName name of the topic.
+     * @param policy policy to apply or null to use the default policy.
+     */
+    public synchronized void setPolicy(String topicName, RetentionPolicy policy) {
+        if (policy == null) {
+            mPolicies.remove(topicName);
+        } else {
+            mPolicies.put(topicName, policy);
+        }
+    }
+
+    private synchronized RetentionPolicy getPolicy(String topicName) {
+        RetentionPolicy policy = mPolicies.get(topicName);
+        return policy != null ? policy : mDefaultPolicy;
+    }
+
+    /**
+     * Compact the cache unless it was compacted recently.
+     *
+     * @param topics topics to compact.
+     * @return promise resolved with the number of bytes reclaimed.
+     */
+    public PromisedReply<Long> compactIfDue(Collection<Topic> topics) {
+        if (topics == null || topics.isEmpty()) {
+            // Topics are not loaded yet.
+            return new PromisedReply<>(0L);
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - mLastRun < COMPACTION_INTERVAL) {
+                return new PromisedReply<>(0L);
+            }
+            mLastRun = now;
+        }
+        return compact(topics);
+    }
+
+    /**
+     * Remove old messages from the given topics then reclaim free space. Compaction is executed
+     * in background, in order with other database writes.
+     *
+     * @param topics topics to compact.
+     * @return promise resolved with the number of bytes reclaimed.
+     */
+    public PromisedReply<Long> compact(final Collection<Topic> topics) {
+        return mWriter.submitTransaction(new Callable<Long>() {
+            @Override
+            public Long call() {
+                SQLiteDatabase db = mDbh.getWritableDatabase();
+                long before = getFileSize(db);
+                int removed = 0;
+                for (Topic topic : topics) {
+                    removed += prune(db, topic, getPolicy(topic.getName()));
+                }
+                reclaimSpace(db);
+                AvatarStore.sweep(db);
+                long reclaimed = Math.max(before - getFileSize(db), 0);
+                Log.d(TAG, "Removed " + removed + " messages, reclaimed " + reclaimed + " bytes");
+                return reclaimed;
+            }
+        });
+    }
+
+    /**
+     * Remove messages from one topic according to the policy.
+     *
+     * @return number of removed messages.
+     */
+    private static int prune(SQLiteDatabase db, Topic topic, RetentionPolicy policy) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null || st.id <= 0) {
+            return 0;
+        }
+
+        long olderThan = policy.maxAge > 0 ? System.currentTimeMillis() - policy.maxAge : 0;
+        int boundary = MessageDb.getRetentionBoundary(db, st.id, policy.keepLast, olderThan);
+        if (boundary <= st.minLocalSeq) {
+            return 0;
+        }
+
+        int removed = 0;
+        try {
+            db.beginTransaction();
+            removed = MessageDb.deleteSyncedBefore(db, st.id, boundary);
+            if (TopicDb.msgPruned(db, topic, boundary)) {
+                db.setTransactionSuccessful();
+            } else {
+                removed = 0;
+            }
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to prune messages in " + topic.getName(), ex);
+            removed = 0;
+        } finally {
+            db.endTransaction();
+        }
+        return removed;
+    }
+
+    /**
+     * Return free pages to the file system. Databases created before incremental vacuum was enabled
+     * are converted by a full vacuum once.
+     */
+    private static void reclaimSpace(SQLiteDatabase db) {
+        try {
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+                db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+                db.execSQL("VACUUM");
+                return;
+            }
+
+            // The pragma may return rows: step through it with a cursor.
+            Cursor c = db.rawQuery("PRAGMA incremental_vacuum", null);
+            c.getCount();
+            c.close();
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to vacuum", ex);
+        }
+    }
+
+    private static long getFileSize(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) *
+                DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    /**
+     * Limits on the number of messages cached locally for a topic.
+     */
+    public static class RetentionPolicy {
+        // Number of the most recent messages to keep, 0 for unlimited.
+        public final int keepLast;
+        // Maximum age of messages in milliseconds, 0 for unlimited.
+        public final long maxAge;
+
+        /**
+         * Messages are kept if they satisfy both limits.
+         *
+         * @param keepLast number of the most recent messages to keep, 0 for unlimited.
+         * @param maxAge maximum age of messages in milliseconds, 0 for unlimited.
+         */
+        public RetentionPolicy(int keepLast, long maxAge) {
+            this.keepLast = keepLast;
+            this.maxAge = maxAge;
+        }
+    }
+}
@@ -33,7 +33,7 @@ public class MessageDb implements BaseColumns {
     /**
      * The name of the main table.
      */
-    private static final String TABLE_NAME = "messages";
+    static final String TABLE_NAME = "messages";
 
     /**
      * Content URI for retrieving messages (content://co.tinode.tindroid/messages)
@@ -43,7 +43,7 @@ public class MessageDb implements BaseColumns {
     /**
      * Topic ID, references topics._ID
      */
-    private static final String COLUMN_NAME_TOPIC_ID = "topic_id";
+    static final String COLUMN_NAME_TOPIC_ID = "topic_id";
     /**
      * Id of the originator of the message, references users._ID
      */
@@ -51,7 +51,7 @@ public class MessageDb implements BaseColumns {
     /**
      * Status of the message: unsent, delivered, deleted
      */
-    private static final String COLUMN_NAME_STATUS = "status";
+    static final String COLUMN_NAME_STATUS = "status";
     /**
      * Uid as string. Deserialized here to avoid a join.
      */
@@ -59,7 +59,7 @@ public class MessageDb implements BaseColumns {
     /**
      * Message timestamp
      */
-    private static final String COLUMN_NAME_TS = "ts";
+    static final String COLUMN_NAME_TS = "ts";
     /**
      * Server-issued sequence ID, integer, indexed
      */
@@ -109,6 +109,40 @@ public class MessageDb implements BaseColumns {
                     COLUMN_NAME_TOPIC_ID + "," +
                     COLUMN_NAME_TS + " DESC)";
 
+    /**
+     * Precompiled statements for frequent updates.
+     */
+    private static final String SQL_UPDATE_STATUS =
+            "UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_STATUS + "=? WHERE " + _ID + "=?";
+    private static final String SQL_UPDATE_CONTENT =
+            "UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_CONTENT + "=? WHERE " + _ID + "=?";
+    private static final String SQL_UPDATE_STATUS_AND_CONTENT =
+            "UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_STATUS + "=?," + COLUMN_NAME_CONTENT + "=?" +
+                    " WHERE " + _ID + "=?";
+    private static final String SQL_DELIVERED =
+            "UPDATE " + TABLE_NAME + " SET " +
+                    COLUMN_NAME_STATUS + "=?," + COLUMN_NAME_TS + "=?," + COLUMN_NAME_SEQ + "=?" +
+                    " WHERE " + _ID + "=?";
+
+    /**
+     * Statements used to trim old messages from cache.
+     */
+    private static final String SQL_NTH_NEWEST_SEQ =
+            "SELECT " + COLUMN_NAME_SEQ + " FROM " + TABLE_NAME +
+                    " WHERE " + COLUMN_NAME_TOPIC_ID + "=? AND " + COLUMN_NAME_STATUS + "=" + BaseDb.STATUS_SYNCED +
+                    " ORDER BY " + COLUMN_NAME_SEQ + " DESC LIMIT 1 OFFSET ?";
+    private static final String SQL_OLDEST_SEQ_SINCE =
+            "SELECT MIN(" + COLUMN_NAME_SEQ + ") FROM " + TABLE_NAME +
+                    " WHERE " + COLUMN_NAME_TOPIC_ID + "=? AND " + COLUMN_NAME_STATUS + "=" + BaseDb.STATUS_SYNCED +
+                    " AND " + COLUMN_NAME_TS + ">=?";
+    private static final String SQL_MAX_SEQ =
+            "SELECT MAX(" + COLUMN_NAME_SEQ + ") FROM " + TABLE_NAME +
+                    " WHERE " + COLUMN_NAME_TOPIC_ID + "=? AND " + COLUMN_NAME_STATUS + "=" + BaseDb.STATUS_SYNCED;
+    private static final String SQL_DELETE_SYNCED_BEFORE =
+            "DELETE FROM " + TABLE_NAME +
+                    " WHERE " + COLUMN_NAME_TOPIC_ID + "=? AND " + COLUMN_NAME_STATUS + "=" + BaseDb.STATUS_SYNCED +
+                    " AND " + COLUMN_NAME_SEQ + "<?";
+
     static final int COLUMN_IDX_ID = 0;
     static final int COLUMN_IDX_TOPIC_ID = 1;
     static final int COLUMN_IDX_USER_ID = 2;
@@ -128,7 +162,7 @@ public class MessageDb implements BaseColumns {
             return msg.id;
         }
 
-        db.beginTransaction();
+        db.beginTransactionWithListener(BaseDb.ID_CACHE_GUARD);
         try {
             if (msg.topicId <= 0) {
                 msg.topicId = TopicDb.getId(db, msg.topic);
@@ -161,6 +195,7 @@ public class MessageDb implements BaseColumns {
             values.put(COLUMN_NAME_CONTENT, BaseDb.serialize(msg.content));
 
             msg.id = db.insertOrThrow(TABLE_NAME, null, values);
+            MessageSearchDb.index(db, msg.id, msg.content);
             db.setTransactionSuccessful();
         } catch (Exception ex) {
             Log.w(TAG, "Insert failed", ex);
@@ -172,29 +207,70 @@ public class MessageDb implements BaseColumns {
     }
 
     static boolean updateStatusAndContent(SQLiteDatabase db, long msgId, int status, Object content) {
-        ContentValues values = new ContentValues();
+        StatementPool statements = BaseDb.getStatements(db);
+        int updated = 0;
         if (status != BaseDb.STATUS_UNDEFINED) {
-            values.put(COLUMN_NAME_STATUS, status);
+            if (content != null) {
+                updated = statements.executeUpdateDelete(SQL_UPDATE_STATUS_AND_CONTENT,
+                        status, BaseDb.serialize(content), msgId);
+            } else {
+                updated = statements.executeUpdateDelete(SQL_UPDATE_STATUS, status, msgId);
+            }
+        } else if (content != null) {
+            updated = statements.executeUpdateDelete(SQL_UPDATE_CONTENT, BaseDb.serialize(content), msgId);
         }
-        if (content != null) {
-            values.put(COLUMN_NAME_CONTENT, BaseDb.serialize(content));
+        if (updated > 0 && content != null) {
+            MessageSearchDb.index(db, msgId, content);
         }
-
-        if (values.size() > 0) {
-            return db.update(TABLE_NAME, values, _ID + "=" + msgId, null) > 0;
-        }
-        return false;
+        return updated > 0;
     }
 
     static boolean delivered(SQLiteDatabase db, long msgId, Date timestamp, int seq) {
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_NAME_STATUS, BaseDb.STATUS_SYNCED);
-        values.put(COLUMN_NAME_TS, timestamp.getTime());
-        values.put(COLUMN_NAME_SEQ, seq);
-        int updated = db.update(TABLE_NAME, values, _ID + "=" + msgId, null);
+        int updated = BaseDb.getStatements(db).executeUpdateDelete(SQL_DELIVERED,
+                BaseDb.STATUS_SYNCED, timestamp.getTime(), seq, msgId);
         return updated > 0;
     }
 
+    /**
+     * Find the oldest message which must be kept in cache according to retention limits.
+     *
+     * @param db         database to query.
+     * @param topicId    _id of the topic.
+     * @param keepLast   keep this many most recent messages, 0 for no limit.
+     * @param olderThan  messages sent before this time (milliseconds) may be removed, 0 for no limit.
+     * @return seq ID of the oldest message to keep: messages with lower seq IDs may be removed;
+     * 0 if there is nothing to remove. The most recent synced message is always kept, so the range
+     * of cached messages never becomes empty.
+     */
+    static int getRetentionBoundary(SQLiteDatabase db, long topicId, int keepLast, long olderThan) {
+        StatementPool statements = BaseDb.getStatements(db);
+        long boundary = 0;
+        if (keepLast > 0) {
+            // -1 if there are fewer messages than the limit.
+            boundary = statements.simpleQueryForLong(SQL_NTH_NEWEST_SEQ, topicId, keepLast - 1);
+        }
+        if (olderThan > 0) {
+            // MIN() of no rows is NULL which is read as 0: all messages are too old. Keep the most
+            // recent one, otherwise the boundary would exceed the max cached seq ID.
+            long seq = statements.simpleQueryForLong(SQL_OLDEST_SEQ_SINCE, topicId, olderThan);
+            if (seq <= 0) {
+                seq = statements.simpleQueryForLong(SQL_MAX_SEQ, topicId);
+            }
+            boundary = Math.max(boundary, seq);
+        }
+        return boundary > 1 ? (int) boundary : 0;
+    }
+
+    /**
+     * Delete synced messages with seq IDs lower than the given one. Unsent messages and
+     * messages pending deletion are kept.
+     *
+     * @return number of deleted messages.
+     */
+    static int deleteSyncedBefore(SQLiteDatabase db, long topicId, int seq) {
+        return BaseDb.getStatements(db).executeUpdateDelete(SQL_DELETE_SYNCED_BEFORE, topicId, seq);
+    }
+
     /**
      * Query messages. To select all messages set <b>from</b> and <b>to</b> equal to -1.
      *
@@ -300,7 +376,7 @@ public class MessageDb implements BaseColumns {
     private static boolean deleteOrMarkDeleted(SQLiteDatabase db, boolean doDelete, long topicId,
                                                int fromId, int toId, List<Integer> list, boolean markAsHard) {
         int affected = 0;
-        db.beginTransaction();
+        db.beginTransactionWithListener(BaseDb.ID_CACHE_GUARD);
         String messageSelector;
         if (list != null) {
             StringBuilder sb = new StringBuilder();
@@ -431,6 +507,31 @@ public class MessageDb implements BaseColumns {
         return cursor.getLong(0);
     }
 
+    /**
+     * Get local ID of the sender of the message.
+     *
+     * @param cursor Cursor to query
+     * @return user ID of the sender of the message at the current position.
+     */
+    public static long getUserId(Cursor cursor) {
+        return cursor.getLong(COLUMN_IDX_USER_ID);
+    }
+
+    /**
+     * Get fingerprint of the message state: changes when status, seq ID, timestamp or content
+     * of the message change. The content is not parsed.
+     *
+     * @param cursor Cursor to query
+     * @return version of the message at the current position.
+     */
+    public static int getVersion(Cursor cursor) {
+        String content = cursor.getString(COLUMN_IDX_CONTENT);
+        int hash = cursor.getInt(COLUMN_IDX_STATUS);
+        hash = hash * 31 + cursor.getInt(COLUMN_IDX_SEQ);
+        hash = hash * 31 + (int) cursor.getLong(COLUMN_IDX_TS);
+        return hash * 31 + (content != null ? content.hashCode() : 0);
+    }
+
     public static class Loader extends CursorLoader {
         SQLiteDatabase mDb;
 
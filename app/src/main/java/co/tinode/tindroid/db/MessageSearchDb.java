@@ -0,0 +1,243 @@
+package co.tinode.tindroid.db;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import co.tinode.tinodesdk.model.Drafty;
+
+/**
+ * Full-text index of message content. FTS4 virtual table which shadows the 'messages' table:
+ * docid of the index is the _id of the message.
+ *
+ * Rows are added and replaced by MessageDb when message content is written. Rows are removed by a
+ * trigger when the message is deleted.
+ */
+public class MessageSearchDb {
+    private static final String TAG = "MessageSearchDb";
+
+    /**
+     * The name of the index table.
+     */
+    private static final String TABLE_NAME = "messages_fts";
+    /**
+     * Plain text of the message.
+     */
+    private static final String COLUMN_NAME_CONTENT = "content";
+    /**
+     * The name of the trigger which removes deleted messages from the index.
+     */
+    private static final String TRIGGER_NAME = "messages_fts_delete";
+
+    /**
+     * Number of candidates to fetch per requested hit. Candidates are the most recent matches,
+     * they are re-ranked by relevance.
+     */
+    private static final int CANDIDATES_PER_HIT = 4;
+
+    /**
+     * SQL statement to create the index table. The unicode61 tokenizer folds case of non-ASCII
+     * letters and strips diacritics.
+     */
+    private static final String CREATE_TABLE =
+            "CREATE VIRTUAL TABLE " + TABLE_NAME + " USING fts4(" + COLUMN_NAME_CONTENT +
+                    ", tokenize=unicode61)";
+    /**
+     * Create the index table with the default tokenizer: unicode61 is missing from SQLite of older
+     * Android versions.
+     */
+    private static final String CREATE_TABLE_SIMPLE =
+            "CREATE VIRTUAL TABLE " + TABLE_NAME + " USING fts4(" + COLUMN_NAME_CONTENT + ")";
+    /**
+     * Keep index in sync with deletions of messages.
+     */
+    static final String CREATE_TRIGGER =
+            "CREATE TRIGGER " + TRIGGER_NAME + " AFTER DELETE ON " + MessageDb.TABLE_NAME +
+                    " BEGIN DELETE FROM " + TABLE_NAME + " WHERE docid=old." + MessageDb._ID + "; END";
+    /**
+     * SQL statement to drop the index table.
+     */
+    static final String DROP_TABLE =
+            "DROP TABLE IF EXISTS " + TABLE_NAME;
+    /**
+     * Drop the trigger too.
+     */
+    static final String DROP_TRIGGER =
+            "DROP TRIGGER IF EXISTS " + TRIGGER_NAME;
+
+    private static final String SQL_DELETE =
+            "DELETE FROM " + TABLE_NAME + " WHERE docid=?";
+    private static final String SQL_INSERT =
+            "INSERT INTO " + TABLE_NAME + "(docid," + COLUMN_NAME_CONTENT + ") VALUES(?,?)";
+
+    // Index of the matchinfo() column in the search results: it follows all the columns of 'messages'.
+    private static final int COLUMN_IDX_MATCHINFO = MessageDb.COLUMN_IDX_CONTENT + 1;
+
+    /**
+     * Create the index table.
+     */
+    static void createTable(SQLiteDatabase db) {
+        try {
+            db.execSQL(CREATE_TABLE);
+        } catch (SQLException ex) {
+            Log.w(TAG, "Tokenizer unicode61 is not available", ex);
+            db.execSQL(CREATE_TABLE_SIMPLE);
+        }
+    }
+
+    /**
+     * Add message content to index or replace the previously indexed content.
+     *
+     * @param db      writable database.
+     * @param msgId   _id of the message.
+     * @param content message content.
+     */
+    static void index(SQLiteDatabase db, long msgId, Object content) {
+        StatementPool statements = BaseDb.getStatements(db);
+        statements.executeUpdateDelete(SQL_DELETE, msgId);
+        if (content instanceof Drafty) {
+            String text = ((Drafty) content).toPlainText();
+            if (!TextUtils.isEmpty(text)) {
+                statements.executeUpdateDelete(SQL_INSERT, msgId, text);
+            }
+        }
+    }
+
+    /**
+     * Find messages in the topic which contain all words of the query. The last word is treated as
+     * a prefix.
+     *
+     * @param db      database to search.
+     * @param topicId _id of the topic to search in.
+     * @param query   words to search for.
+     * @param limit   maximum number of hits to return.
+     * @return messages ordered by relevance, most relevant first, or null if nothing was found.
+     */
+    static List<StoredMessage> search(SQLiteDatabase db, long topicId, String query, int limit) {
+        String match = toMatchExpression(query);
+        if (match == null || limit <= 0) {
+            return null;
+        }
+
+        String sql = "SELECT " + MessageDb.TABLE_NAME + ".*,matchinfo(" + TABLE_NAME + ",'pcx')" +
+                " FROM " + TABLE_NAME +
+                " JOIN " + MessageDb.TABLE_NAME +
+                " ON " + MessageDb.TABLE_NAME + "." + MessageDb._ID + "=" + TABLE_NAME + ".docid" +
+                " WHERE " + TABLE_NAME + " MATCH ?" +
+                " AND " + MessageDb.COLUMN_NAME_TOPIC_ID + "=?" +
+                " AND " + MessageDb.COLUMN_NAME_STATUS + "<=" + BaseDb.STATUS_VISIBLE +
+                " ORDER BY " + MessageDb.COLUMN_NAME_TS + " DESC" +
+                " LIMIT " + (limit * CANDIDATES_PER_HIT);
+
+        final List<Hit> hits = new ArrayList<>();
+        Cursor c = null;
+        try {
+            c = db.rawQuery(sql, new String[]{match, String.valueOf(topicId)});
+            if (c.moveToFirst()) {
+                do {
+                    Hit hit = new Hit();
+                    hit.msg = StoredMessage.readMessage(c);
+                    hit.rank = rank(c.getBlob(COLUMN_IDX_MATCHINFO));
+                    hits.add(hit);
+                } while (c.moveToNext());
+            }
+        } catch (SQLException ex) {
+            Log.w(TAG, "Search failed", ex);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        if (hits.isEmpty()) {
+            return null;
+        }
+
+        // Candidates are already sorted by time. The sort is stable: equally ranked hits stay newest first.
+        Collections.sort(hits, new Comparator<Hit>() {
+            @Override
+            public int compare(Hit a, Hit b) {
+                return Double.compare(b.rank, a.rank);
+            }
+        });
+
+        List<StoredMessage> result = new ArrayList<>(Math.min(limit, hits.size()));
+        for (Hit hit : hits) {
+            if (result.size() >= limit) {
+                break;
+            }
+            result.add(hit.msg);
+        }
+        return result;
+    }
+
+    /**
+     * Convert user input into FTS MATCH expression: every word is quoted to make sure
+     * the FTS query syntax is not triggered accidentally.
+     *
+     * @return match expression or null if the query contains no words.
+     */
+    private static String toMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String word : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() > 0) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append('"').append(word).append('"');
+            }
+        }
+
+        if (sb.length() == 0) {
+            return null;
+        }
+        // Treat the last word as a prefix, the query may be incomplete. The star must be inside
+        // the quotes, FTS ignores it after the closing quote.
+        return sb.insert(sb.length() - 1, '*').toString();
+    }
+
+    /**
+     * Compute relevance from the output of matchinfo(fts, 'pcx'): for each phrase the share of
+     * all its occurrences which are found in this row. Rare words which are repeated in the
+     * message weigh the most.
+     */
+    private static double rank(byte[] matchinfo) {
+        if (matchinfo == null) {
+            return 0;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+        int phrases = buf.getInt(0);
+        int columns = buf.getInt(4);
+        double score = 0;
+        for (int i = 0; i < phrases * columns; i++) {
+            // Three values per phrase per column: hits in this row, hits in all rows, rows with hits.
+            int base = (2 + i * 3) * 4;
+            int hitsThisRow = buf.getInt(base);
+            int hitsAllRows = buf.getInt(base + 4);
+            if (hitsAllRows > 0) {
+                score += (double) hitsThisRow / hitsAllRows;
+            }
+        }
+        return score;
+    }
+
+    private static class Hit {
+        StoredMessage msg;
+        double rank;
+    }
+}
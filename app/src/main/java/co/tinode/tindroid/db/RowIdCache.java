@@ -0,0 +1,72 @@
+package co.tinode.tindroid.db;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory mapping between names (topic name or user UID) and database row _id.
+ * Entries are evicted in least recently used order.
+ */
+class RowIdCache {
+    private final HashMap<Long, String> mNames;
+    private final LinkedHashMap<String, Long> mIds;
+
+    RowIdCache(final int capacity) {
+        mNames = new HashMap<>();
+        mIds = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > capacity) {
+                    mNames.remove(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get cached _id of the row.
+     *
+     * @param name topic name or user UID.
+     * @return _id or -1 if the name is not cached.
+     */
+    synchronized long getId(String name) {
+        Long id = mIds.get(name);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Add or replace mapping name to _id. Any stale mapping of the name or the _id is discarded.
+     */
+    synchronized void put(String name, long id) {
+        if (name == null || id <= 0) {
+            return;
+        }
+
+        String oldName = mNames.put(id, name);
+        if (oldName != null && !oldName.equals(name)) {
+            mIds.remove(oldName);
+        }
+        Long oldId = mIds.put(name, id);
+        if (oldId != null && oldId != id) {
+            mNames.remove(oldId);
+        }
+    }
+
+    /**
+     * Remove row from cache, i.e. when the row is deleted.
+     */
+    synchronized void remove(long id) {
+        String name = mNames.remove(id);
+        if (name != null) {
+            mIds.remove(name);
+        }
+    }
+
+    synchronized void clear() {
+        mIds.clear();
+        mNames.clear();
+    }
+}
@@ -11,12 +11,15 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 
+import co.tinode.tinodesdk.PromisedReply;
 import co.tinode.tinodesdk.Storage;
 import co.tinode.tinodesdk.Tinode;
 import co.tinode.tinodesdk.Topic;
 import co.tinode.tinodesdk.User;
 import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.Fields;
 import co.tinode.tinodesdk.model.MsgServerData;
 import co.tinode.tinodesdk.model.Subscription;
 
@@ -28,11 +31,14 @@ public class SqlStore implements Storage {
     private static final String TAG = "SqlStore";
 
     private BaseDb mDbh;
-    private long mMyId = -1;
+    private DbWriter mWriter;
+    private MessageCompactor mCompactor;
     private long mTimeAdjustment = 0;
 
     SqlStore(BaseDb dbh) {
         mDbh = dbh;
+        mWriter = new DbWriter(dbh);
+        mCompactor = new MessageCompactor(dbh, mWriter);
     }
 
     @Override
@@ -64,6 +70,13 @@ public class SqlStore implements Storage {
         return mDbh.isReady();
     }
 
+    /**
+     * Get engine which removes old messages from cache.
+     */
+    public MessageCompactor getCompactor() {
+        return mCompactor;
+    }
+
     public void logout() {
         AccountDb.deactivateAll(mDbh.getWritableDatabase());
         mDbh.setUid(null);
@@ -99,6 +112,11 @@ public class SqlStore implements Storage {
         return TopicDb.update(mDbh.getWritableDatabase(), topic);
     }
 
+    @Override
+    public boolean topicUpdate(Topic topic, int changed) {
+        return TopicDb.update(mDbh.getWritableDatabase(), topic, changed);
+    }
+
     @Override
     public boolean topicDelete(Topic topic) {
         StoredTopic st = (StoredTopic) topic.getLocal();
@@ -107,7 +125,7 @@ public class SqlStore implements Storage {
             SQLiteDatabase db = mDbh.getWritableDatabase();
 
             try {
-                db.beginTransaction();
+                db.beginTransactionWithListener(BaseDb.ID_CACHE_GUARD);
 
                 MessageDb.delete(db, st.id, 0, -1);
                 SubscriberDb.deleteForTopic(db, st.id);
@@ -167,10 +185,15 @@ public class SqlStore implements Storage {
 
     @Override
     public boolean subUpdate(Topic topic, Subscription sub) {
+        return subUpdate(topic, sub, Fields.ALL);
+    }
+
+    @Override
+    public boolean subUpdate(Topic topic, Subscription sub, int changed) {
         boolean result = false;
         StoredSubscription ss = (StoredSubscription) sub.getLocal();
         if (ss != null && ss.id > 0) {
-            result = SubscriberDb.update(mDbh.getWritableDatabase(), sub);
+            result = SubscriberDb.update(mDbh.getWritableDatabase(), sub, changed);
         }
         return result;
     }
@@ -245,7 +268,7 @@ public class SqlStore implements Storage {
         msg.userId = userId;
 
         try {
-            db.beginTransaction();
+            db.beginTransactionWithListener(BaseDb.ID_CACHE_GUARD);
 
             msg.id = MessageDb.insert(db, topic, msg);
 
@@ -276,10 +299,7 @@ public class SqlStore implements Storage {
         msg.content = data;
 
         msg.topicId = StoredTopic.getId(topic);
-        if (mMyId < 0) {
-            mMyId = UserDb.getId(db, msg.from);
-        }
-        msg.userId = mMyId;
+        msg.userId = UserDb.getId(db, msg.from);
 
         return MessageDb.insert(db, topic, msg);
     }
@@ -319,7 +339,7 @@ public class SqlStore implements Storage {
         SQLiteDatabase db = mDbh.getWritableDatabase();
         boolean result = false;
         try {
-            db.beginTransaction();
+            db.beginTransactionWithListener(BaseDb.ID_CACHE_GUARD);
 
             if (MessageDb.delivered(mDbh.getWritableDatabase(), messageDbId, timestamp, seq) &&
                     TopicDb.msgReceived(db, topic, timestamp, seq)) {
@@ -352,7 +372,7 @@ public class SqlStore implements Storage {
         StoredTopic st = (StoredTopic) topic.getLocal();
         boolean result = false;
         try {
-            db.beginTransaction();
+            db.beginTransactionWithListener(BaseDb.ID_CACHE_GUARD);
 
             if (TopicDb.msgDeleted(db, topic, delId) &&
                 MessageDb.delete(mDbh.getWritableDatabase(), st.id, fromId, toId)) {
@@ -374,7 +394,7 @@ public class SqlStore implements Storage {
         StoredTopic st = (StoredTopic) topic.getLocal();
         boolean result = false;
         try {
-            db.beginTransaction();
+            db.beginTransactionWithListener(BaseDb.ID_CACHE_GUARD);
 
             if (TopicDb.msgDeleted(db, topic, delId) &&
                     MessageDb.delete(mDbh.getWritableDatabase(), st.id, list)) {
@@ -409,6 +429,46 @@ public class SqlStore implements Storage {
         return result;
     }
 
+    @Override
+    public PromisedReply<Boolean> setReadAsync(final Topic topic, final int read) {
+        return mWriter.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return setRead(topic, read);
+            }
+        });
+    }
+
+    @Override
+    public PromisedReply<Boolean> setRecvAsync(final Topic topic, final int recv) {
+        return mWriter.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return setRecv(topic, recv);
+            }
+        });
+    }
+
+    @Override
+    public PromisedReply<Boolean> msgRecvByRemoteAsync(final Subscription sub, final int recv) {
+        return mWriter.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return msgRecvByRemote(sub, recv);
+            }
+        });
+    }
+
+    @Override
+    public PromisedReply<Boolean> msgReadByRemoteAsync(final Subscription sub, final int read) {
+        return mWriter.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return msgReadByRemote(sub, read);
+            }
+        });
+    }
+
     @Override
     public <T extends Storage.Message> T getMessageById(Topic topic, long dbMessageId) {
         Storage.Message msg = null;
@@ -420,6 +480,16 @@ public class SqlStore implements Storage {
         return (T) msg;
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends Storage.Message> List<T> msgSearch(Topic topic, String query, int limit) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null || st.id <= 0) {
+            return null;
+        }
+        return (List<T>) MessageSearchDb.search(mDbh.getReadableDatabase(), st.id, query, limit);
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public <R extends Iterator<Message> & Closeable> R getQueuedMessages(Topic topic) {
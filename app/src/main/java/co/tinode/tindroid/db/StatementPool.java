@@ -0,0 +1,111 @@
+package co.tinode.tindroid.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Cache of precompiled parameterized statements used on the hot paths: id lookups,
+ * status and counter updates.
+ *
+ * SQLiteStatement keeps its bind arguments between executions, so statements are not shared
+ * between threads. Each thread gets its own set of statements compiled against the same connection.
+ * This also avoids a lock which could deadlock against a transaction held by another thread.
+ */
+class StatementPool {
+    private final SQLiteDatabase mDb;
+
+    private final ThreadLocal<HashMap<String, SQLiteStatement>> mStatements =
+            new ThreadLocal<HashMap<String, SQLiteStatement>>() {
+                @Override
+                protected HashMap<String, SQLiteStatement> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    // All statements compiled by all threads, to close them when the pool is replaced.
+    private final ArrayList<SQLiteStatement> mCompiled = new ArrayList<>();
+
+    StatementPool(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Check if the pool was created for the given database connection.
+     */
+    boolean isFor(SQLiteDatabase db) {
+        return mDb == db;
+    }
+
+    /**
+     * Release statements compiled by all threads. The pool must not be used afterwards.
+     */
+    void close() {
+        synchronized (mCompiled) {
+            for (SQLiteStatement stmt : mCompiled) {
+                stmt.close();
+            }
+            mCompiled.clear();
+        }
+    }
+
+    /**
+     * Get compiled statement and bind arguments to it.
+     *
+     * @param sql SQL with '?' placeholders.
+     * @param args arguments to bind; Integer, Long, String or null.
+     * @return statement ready for execution.
+     */
+    private SQLiteStatement acquire(String sql, Object[] args) {
+        HashMap<String, SQLiteStatement> statements = mStatements.get();
+        SQLiteStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            stmt = mDb.compileStatement(sql);
+            statements.put(sql, stmt);
+            synchronized (mCompiled) {
+                mCompiled.add(stmt);
+            }
+        }
+
+        stmt.clearBindings();
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null) {
+                stmt.bindNull(i + 1);
+            } else if (arg instanceof String) {
+                stmt.bindString(i + 1, (String) arg);
+            } else if (arg instanceof Number) {
+                stmt.bindLong(i + 1, ((Number) arg).longValue());
+            } else {
+                throw new IllegalArgumentException("Unsupported argument type " + arg.getClass().getName());
+            }
+        }
+        return stmt;
+    }
+
+    /**
+     * Execute a query which returns a 1x1 result.
+     *
+     * @return value of the first column of the first row or -1 if nothing was found.
+     */
+    long simpleQueryForLong(String sql, Object... args) {
+        try {
+            return acquire(sql, args).simpleQueryForLong();
+        } catch (SQLiteDoneException ignored) {
+            // No rows.
+            return -1;
+        }
+    }
+
+    /**
+     * Execute UPDATE or DELETE statement.
+     *
+     * @return number of rows affected.
+     */
+    int executeUpdateDelete(String sql, Object... args) {
+        return acquire(sql, args).executeUpdateDelete();
+    }
+}
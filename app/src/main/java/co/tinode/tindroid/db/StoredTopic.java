@@ -48,7 +48,7 @@ public class StoredTopic implements LocalData.Payload {
         topic.setPub(BaseDb.deserialize(c.getString(TopicDb.COLUMN_IDX_PUBLIC)));
         topic.setPriv(BaseDb.deserialize(c.getString(TopicDb.COLUMN_IDX_PRIVATE)));
 
-        topic.setAccessMode(BaseDb.deserializeMode(c.getString(TopicDb.COLUMN_IDX_ACCESSMODE)));
+        topic.setAccessMode(BaseDb.deserializeMode(c.getInt(TopicDb.COLUMN_IDX_ACCESSMODE)));
         topic.setDefacs(BaseDb.deserializeDefacs(c.getString(TopicDb.COLUMN_IDX_DEFACS)));
 
         topic.setLocal(st);
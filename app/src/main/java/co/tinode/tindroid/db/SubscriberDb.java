@@ -11,6 +11,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.LinkedList;
 
+import co.tinode.tinodesdk.model.Fields;
 import co.tinode.tinodesdk.model.LastSeen;
 import co.tinode.tinodesdk.model.Subscription;
 
@@ -82,7 +83,7 @@ public class SubscriberDb implements BaseColumns {
                     COLUMN_NAME_USER_ID
                     + " REFERENCES " + UserDb.TABLE_NAME + "(" + UserDb._ID + ")," +
                     COLUMN_NAME_STATUS + " INT," +
-                    COLUMN_NAME_MODE + " TEXT," +
+                    COLUMN_NAME_MODE + " INT," +
                     COLUMN_NAME_UPDATED + " INT," +
                     COLUMN_NAME_DELETED + " INT," +
                     COLUMN_NAME_READ + " INT," +
@@ -106,6 +107,12 @@ public class SubscriberDb implements BaseColumns {
      */
     static final String DROP_INDEX =
             "DROP INDEX IF EXISTS " + INDEX_NAME;
+    /**
+     * Precompiled statements for frequent counter updates.
+     */
+    private static final String SQL_UPDATE_READ = BaseDb.counterUpdateSql(TABLE_NAME, COLUMN_NAME_READ);
+    private static final String SQL_UPDATE_RECV = BaseDb.counterUpdateSql(TABLE_NAME, COLUMN_NAME_RECV);
+
     private static final String TAG = "SubscriberDb";
     private static final int COLUMN_IDX_ID = 0;
     private static final int COLUMN_IDX_TOPIC_ID = 1;
@@ -134,14 +141,16 @@ public class SubscriberDb implements BaseColumns {
     public static long insert(SQLiteDatabase db, long topicId, int status, Subscription sub) {
         // Log.d(TAG, "Inserting sub for " + topicId + "/" + sub.user);
         long id = -1;
+        long newUserId = -1;
         try {
-            db.beginTransaction();
+            db.beginTransactionWithListener(BaseDb.ID_CACHE_GUARD);
 
             StoredSubscription ss = new StoredSubscription();
 
             ss.userId = UserDb.getId(db, sub.user);
             if (ss.userId <= 0) {
                 ss.userId = UserDb.insert(db, sub);
+                newUserId = ss.userId;
             }
             if (ss.userId <= 0) {
                 Log.e(TAG, "Failed to insert user: " + ss.userId);
@@ -178,6 +187,10 @@ public class SubscriberDb implements BaseColumns {
 
         } catch (SQLException ex) {
             Log.e(TAG, "Exception while inserting", ex);
+            if (newUserId > 0) {
+                // User insertion is rolled back too.
+                UserDb.forgetId(newUserId);
+            }
         }
 
         db.endTransaction();
@@ -191,6 +204,16 @@ public class SubscriberDb implements BaseColumns {
      * @return true if the record was updated, false otherwise
      */
     public static boolean update(SQLiteDatabase db, Subscription sub) {
+        return update(db, sub, Fields.ALL);
+    }
+
+    /**
+     * Update changed fields of subscription and its user.
+     *
+     * @param fields bit mask of changed fields, see {@link Fields}.
+     * @return true if the record was updated, false otherwise
+     */
+    public static boolean update(SQLiteDatabase db, Subscription sub, int fields) {
         int updated = -1;
 
         try {
@@ -199,27 +222,39 @@ public class SubscriberDb implements BaseColumns {
                 return false;
             }
 
-            db.beginTransaction();
+            db.beginTransactionWithListener(BaseDb.ID_CACHE_GUARD);
 
             int status = ss.status;
 
-            // Update user
-            UserDb.update(db, sub);
+            // Update user: the public value is serialized only if it has changed.
+            if ((fields & Fields.PUB) != 0) {
+                UserDb.update(db, sub);
+            } else if ((fields & Fields.UPDATED) != 0 && ss.userId > 0) {
+                UserDb.update(db, ss.userId, sub.updated, null);
+            }
 
             // Convert topic description to a map of values
             ContentValues values = new ContentValues();
-            values.put(COLUMN_NAME_MODE, BaseDb.serializeMode(sub.acs));
-            if (sub.updated != null) {
+            if ((fields & Fields.ACS) != 0) {
+                values.put(COLUMN_NAME_MODE, BaseDb.serializeMode(sub.acs));
+            }
+            if ((fields & Fields.UPDATED) != 0 && sub.updated != null) {
                 values.put(COLUMN_NAME_UPDATED, sub.updated.getTime());
             }
             if (ss.status != BaseDb.STATUS_SYNCED) {
                 values.put(COLUMN_NAME_STATUS, BaseDb.STATUS_SYNCED);
                 status = BaseDb.STATUS_SYNCED;
             }
-            values.put(COLUMN_NAME_READ, sub.read);
-            values.put(COLUMN_NAME_RECV, sub.recv);
-            values.put(COLUMN_NAME_CLEAR, sub.clear);
-            if (sub.seen != null) {
+            if ((fields & Fields.READ) != 0) {
+                values.put(COLUMN_NAME_READ, sub.read);
+            }
+            if ((fields & Fields.RECV) != 0) {
+                values.put(COLUMN_NAME_RECV, sub.recv);
+            }
+            if ((fields & Fields.CLEAR) != 0) {
+                values.put(COLUMN_NAME_CLEAR, sub.clear);
+            }
+            if ((fields & Fields.SEEN) != 0 && sub.seen != null) {
                 if (sub.seen.when != null) {
                     values.put(COLUMN_NAME_LAST_SEEN, sub.seen.when.getTime());
                 }
@@ -228,7 +263,8 @@ public class SubscriberDb implements BaseColumns {
                 }
             }
 
-            updated = db.update(TABLE_NAME, values, _ID + "=" + ss.id, null);
+            // Nothing stored has changed: not an error.
+            updated = values.size() > 0 ? db.update(TABLE_NAME, values, _ID + "=" + ss.id, null) : 1;
 
             //Log.d(TAG, "Update row, accid=" + BaseDb.getInstance().getAccountId() +
             //        " name=" + sub.user + " returned " + updated);
@@ -312,7 +348,7 @@ public class SubscriberDb implements BaseColumns {
         // Subscription part
         Subscription s = new Subscription();
         // From subs table
-        s.acs = BaseDb.deserializeMode(c.getString(COLUMN_IDX_MODE));
+        s.acs = BaseDb.deserializeMode(c.getInt(COLUMN_IDX_MODE));
         s.updated = new Date(c.getLong(COLUMN_IDX_UPDATED));
         s.read = c.getInt(COLUMN_IDX_READ);
         s.recv = c.getInt(COLUMN_IDX_RECV);
@@ -351,11 +387,11 @@ public class SubscriberDb implements BaseColumns {
         return result;
     }
 
-    public static boolean updateRead(SQLiteDatabase db, long topicId, int read) {
-        return BaseDb.updateCounter(db, TABLE_NAME, COLUMN_NAME_READ, topicId, read);
+    public static boolean updateRead(SQLiteDatabase db, long subId, int read) {
+        return BaseDb.updateCounter(db, SQL_UPDATE_READ, subId, read);
     }
 
-    public static boolean updateRecv(SQLiteDatabase db, long topicId, int recv) {
-        return BaseDb.updateCounter(db, TABLE_NAME, COLUMN_NAME_RECV, topicId, recv);
+    public static boolean updateRecv(SQLiteDatabase db, long subId, int recv) {
+        return BaseDb.updateCounter(db, SQL_UPDATE_RECV, subId, recv);
     }
 }
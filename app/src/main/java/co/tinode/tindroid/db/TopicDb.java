@@ -2,7 +2,6 @@ package co.tinode.tindroid.db;
 
 import android.content.ContentValues;
 import android.database.Cursor;
-import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.provider.BaseColumns;
 
@@ -10,6 +9,7 @@ import java.util.Date;
 
 import co.tinode.tinodesdk.Tinode;
 import co.tinode.tinodesdk.Topic;
+import co.tinode.tinodesdk.model.Fields;
 
 /**
  * Store for topics
@@ -20,6 +20,9 @@ public class TopicDb implements BaseColumns {
 
     private static final int UNSENT_ID_START = 2000000000;
 
+    // Maximum number of cached topic name to _id mappings.
+    private static final int ID_CACHE_SIZE = 512;
+
     /**
      * The name of the main table.
      */
@@ -77,7 +80,7 @@ public class TopicDb implements BaseColumns {
      */
     public static final String COLUMN_NAME_MAX_DEL = "max_del";
     /**
-     * Access mode, string
+     * Access mode, packed into an integer
      */
     public static final String COLUMN_NAME_ACCESSMODE = "mode";
     /**
@@ -156,7 +159,7 @@ public class TopicDb implements BaseColumns {
                     COLUMN_NAME_SEQ + " INT," +
                     COLUMN_NAME_CLEAR + " INT," +
                     COLUMN_NAME_MAX_DEL + " INT," +
-                    COLUMN_NAME_ACCESSMODE + " TEXT," +
+                    COLUMN_NAME_ACCESSMODE + " INT," +
                     COLUMN_NAME_DEFACS + " TEXT," +
                     COLUMN_NAME_LASTUSED + " INT," +
                     COLUMN_NAME_MIN_LOCAL_SEQ + " INT," +
@@ -184,6 +187,24 @@ public class TopicDb implements BaseColumns {
     static final String DROP_INDEX =
             "DROP INDEX IF EXISTS " + INDEX_NAME;
 
+    /**
+     * Precompiled statements for frequent operations.
+     */
+    private static final String SQL_GET_ID =
+            "SELECT " + _ID + " FROM " + TABLE_NAME +
+                    " WHERE " + COLUMN_NAME_ACCOUNT_ID + "=? AND " + COLUMN_NAME_TOPIC + "=?";
+    private static final String SQL_UPDATE_NEXT_UNSENT_SEQ =
+            "UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_NEXT_UNSENT_SEQ + "=? WHERE " + _ID + "=?";
+    private static final String SQL_UPDATE_READ = BaseDb.counterUpdateSql(TABLE_NAME, COLUMN_NAME_READ);
+    private static final String SQL_UPDATE_RECV = BaseDb.counterUpdateSql(TABLE_NAME, COLUMN_NAME_RECV);
+    private static final String SQL_UPDATE_SEQ = BaseDb.counterUpdateSql(TABLE_NAME, COLUMN_NAME_SEQ);
+    private static final String SQL_UPDATE_CLEAR = BaseDb.counterUpdateSql(TABLE_NAME, COLUMN_NAME_CLEAR);
+
+    /**
+     * Cache of topic name to _id mappings of the current account.
+     */
+    private static final RowIdCache sIdCache = new RowIdCache(ID_CACHE_SIZE);
+
     /**
      * Save topic description to DB
      *
@@ -228,6 +249,8 @@ public class TopicDb implements BaseColumns {
 
         long id = db.insert(TABLE_NAME, null, values);
         if (id > 0) {
+            sIdCache.put(topic.getName(), id);
+
             StoredTopic st = new StoredTopic();
             st.id = id;
             st.lastUsed = lastUsed;
@@ -246,8 +269,18 @@ public class TopicDb implements BaseColumns {
      *
      * @return true if the record was updated, false otherwise
      */
-    @SuppressWarnings("unchecked")
     public static boolean update(SQLiteDatabase db, Topic topic) {
+        return update(db, topic, Fields.ALL);
+    }
+
+    /**
+     * Update changed fields of topic description. Public and private values are serialized only if changed.
+     *
+     * @param fields bit mask of changed fields, see {@link Fields}.
+     * @return true if the record was updated, false otherwise
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean update(SQLiteDatabase db, Topic topic, int fields) {
         StoredTopic st = (StoredTopic) topic.getLocal();
         if (st == null) {
             return false;
@@ -262,24 +295,55 @@ public class TopicDb implements BaseColumns {
             values.put(COLUMN_NAME_STATUS, status);
             values.put(COLUMN_NAME_TOPIC, topic.getName());
         }
-        if (topic.getUpdated() != null) {
+        if ((fields & Fields.UPDATED) != 0 && topic.getUpdated() != null) {
             values.put(COLUMN_NAME_UPDATED, topic.getUpdated().getTime());
         }
-        values.put(COLUMN_NAME_READ, topic.getRead());
-        values.put(COLUMN_NAME_RECV, topic.getRecv());
-        values.put(COLUMN_NAME_SEQ, topic.getSeq());
-        values.put(COLUMN_NAME_CLEAR, topic.getClear());
-        values.put(COLUMN_NAME_ACCESSMODE, BaseDb.serializeMode(topic.getAccessMode()));
-        values.put(COLUMN_NAME_DEFACS, BaseDb.serializeDefacs(topic.getDefacs()));
-        values.put(COLUMN_NAME_TAGS, BaseDb.serializeTags(topic.getTags()));
-        values.put(COLUMN_NAME_PUBLIC, BaseDb.serialize(topic.getPub()));
-        values.put(COLUMN_NAME_PRIVATE, BaseDb.serialize(topic.getPriv()));
+        if ((fields & Fields.READ) != 0) {
+            values.put(COLUMN_NAME_READ, topic.getRead());
+        }
+        if ((fields & Fields.RECV) != 0) {
+            values.put(COLUMN_NAME_RECV, topic.getRecv());
+        }
+        if ((fields & Fields.SEQ) != 0) {
+            values.put(COLUMN_NAME_SEQ, topic.getSeq());
+        }
+        if ((fields & Fields.CLEAR) != 0) {
+            values.put(COLUMN_NAME_CLEAR, topic.getClear());
+        }
+        if ((fields & Fields.ACS) != 0) {
+            values.put(COLUMN_NAME_ACCESSMODE, BaseDb.serializeMode(topic.getAccessMode()));
+        }
+        if ((fields & Fields.DEFACS) != 0) {
+            values.put(COLUMN_NAME_DEFACS, BaseDb.serializeDefacs(topic.getDefacs()));
+        }
+        // Tags are not part of the description: they are written by full updates only.
+        if (fields == Fields.ALL) {
+            values.put(COLUMN_NAME_TAGS, BaseDb.serializeTags(topic.getTags()));
+        }
+        if ((fields & Fields.PUB) != 0) {
+            values.put(COLUMN_NAME_PUBLIC, BaseDb.serialize(topic.getPub()));
+        }
+        if ((fields & Fields.PRIV) != 0) {
+            values.put(COLUMN_NAME_PRIVATE, BaseDb.serialize(topic.getPriv()));
+        }
 
-        Date lastUsed = topic.getTouched() != null ? topic.getTouched() : new Date();
-        values.put(COLUMN_NAME_LASTUSED, lastUsed.getTime());
+        Date lastUsed = st.lastUsed;
+        if ((fields & Fields.TOUCHED) != 0 || fields == Fields.ALL) {
+            lastUsed = topic.getTouched() != null ? topic.getTouched() : new Date();
+            values.put(COLUMN_NAME_LASTUSED, lastUsed.getTime());
+        }
+
+        if (values.size() == 0) {
+            // Nothing stored has changed.
+            return true;
+        }
 
         int updated = db.update(TABLE_NAME, values, _ID + "=" + st.id, null);
         if (updated > 0) {
+            if (status != st.status) {
+                // Topic name has changed from temporary to the one assigned by the server.
+                sIdCache.put(topic.getName(), st.id);
+            }
             st.lastUsed = lastUsed;
             st.status = status;
         }
@@ -353,6 +417,34 @@ public class TopicDb implements BaseColumns {
         }
         return true;
     }
+
+    /**
+     * Messages with seq IDs lower than minSeq were removed from cache. Move the lower bound of
+     * cached messages so the removed messages are fetched from the server when needed.
+     */
+    static boolean msgPruned(SQLiteDatabase db, Topic topic, int minSeq) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            return false;
+        }
+
+        // The cached range must not be inverted.
+        if (minSeq > st.maxLocalSeq) {
+            return false;
+        }
+
+        if (minSeq > st.minLocalSeq) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_NAME_MIN_LOCAL_SEQ, minSeq);
+            int updated = db.update(TABLE_NAME, values, _ID + "=" + st.id, null);
+            if (updated <= 0) {
+                return false;
+            }
+            st.minLocalSeq = minSeq;
+        }
+        return true;
+    }
+
     /**
      * Query topics.
      *
@@ -393,9 +485,10 @@ public class TopicDb implements BaseColumns {
         Topic topic = null;
         String sql = "SELECT * FROM " + TABLE_NAME +
                 " WHERE " +
-                COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() + " AND " +
-                COLUMN_NAME_TOPIC + "='" + name + "'";
-        Cursor c = db.rawQuery(sql, null);
+                COLUMN_NAME_ACCOUNT_ID + "=? AND " +
+                COLUMN_NAME_TOPIC + "=?";
+        Cursor c = db.rawQuery(sql,
+                new String[]{String.valueOf(BaseDb.getInstance().getAccountId()), name});
         if (c != null) {
             if (c.moveToFirst()) {
                 topic = readOne(tinode, c);
@@ -414,6 +507,7 @@ public class TopicDb implements BaseColumns {
      */
     @SuppressWarnings("WeakerAccess")
     public static boolean delete(SQLiteDatabase db, long id) {
+        sIdCache.remove(id);
         return db.delete(TABLE_NAME, _ID + "=" + id, null) > 0;
     }
 
@@ -425,24 +519,28 @@ public class TopicDb implements BaseColumns {
      * @return _id of the topic
      */
     public static long getId(SQLiteDatabase db, String topic) {
-        try {
-            return db.compileStatement("SELECT " + _ID + " FROM " + TABLE_NAME +
-                    " WHERE " +
-                    COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() + " AND " +
-                    COLUMN_NAME_TOPIC + "='" + topic + "'").simpleQueryForLong();
-        } catch (SQLException ignored) {
-            // topic not found
-            return -1;
+        long id = sIdCache.getId(topic);
+        if (id <= 0) {
+            // Returns -1 if topic is not found.
+            id = BaseDb.getStatements(db).simpleQueryForLong(SQL_GET_ID,
+                    BaseDb.getInstance().getAccountId(), topic);
+            sIdCache.put(topic, id);
         }
+        return id;
+    }
+
+    /**
+     * Discard cached topic IDs, i.e. when the account is changed or the tables are dropped.
+     */
+    static void clearIdCache() {
+        sIdCache.clear();
     }
 
     public static int getNextUnsentSeq(SQLiteDatabase db, Topic topic) {
         StoredTopic st = (StoredTopic) topic.getLocal();
         if (st != null) {
             st.nextUnsentId ++;
-            ContentValues values = new ContentValues();
-            values.put(COLUMN_NAME_NEXT_UNSENT_SEQ, st.nextUnsentId);
-            db.update(TABLE_NAME, values, _ID + "=" + st.id, null);
+            BaseDb.getStatements(db).executeUpdateDelete(SQL_UPDATE_NEXT_UNSENT_SEQ, st.nextUnsentId, st.id);
             return st.nextUnsentId;
         }
 
@@ -451,20 +549,20 @@ public class TopicDb implements BaseColumns {
 
     @SuppressWarnings("WeakerAccess")
     public static boolean updateRead(SQLiteDatabase db, long topicId, int read) {
-        return BaseDb.updateCounter(db, TABLE_NAME, COLUMN_NAME_READ, topicId, read);
+        return BaseDb.updateCounter(db, SQL_UPDATE_READ, topicId, read);
     }
 
     @SuppressWarnings("WeakerAccess")
     public static boolean updateRecv(SQLiteDatabase db, long topicId, int recv) {
-        return BaseDb.updateCounter(db, TABLE_NAME, COLUMN_NAME_RECV, topicId, recv);
+        return BaseDb.updateCounter(db, SQL_UPDATE_RECV, topicId, recv);
     }
 
     public static boolean updateSeq(SQLiteDatabase db, long topicId, int seq) {
-        return BaseDb.updateCounter(db, TABLE_NAME, COLUMN_NAME_SEQ, topicId, seq);
+        return BaseDb.updateCounter(db, SQL_UPDATE_SEQ, topicId, seq);
     }
 
     @SuppressWarnings("WeakerAccess")
     public static boolean updateClear(SQLiteDatabase db, long topicId, int clear) {
-        return BaseDb.updateCounter(db, TABLE_NAME, COLUMN_NAME_CLEAR, topicId, clear);
+        return BaseDb.updateCounter(db, SQL_UPDATE_CLEAR, topicId, clear);
     }
 }
@@ -19,6 +19,9 @@ public class UserDb implements BaseColumns {
     @SuppressWarnings("unused")
     private static final String TAG = "UserDb";
 
+    // Maximum number of cached user UID to _id mappings.
+    private static final int ID_CACHE_SIZE = 2048;
+
     /**
      * The name of the main table.
      */
@@ -87,6 +90,18 @@ public class UserDb implements BaseColumns {
     static final String DROP_INDEX =
             "DROP INDEX IF EXISTS " + INDEX_NAME;
 
+    /**
+     * Precompiled statement to find user's _id given the account ID and UID.
+     */
+    private static final String SQL_GET_ID =
+            "SELECT " + _ID + " FROM " + TABLE_NAME +
+                    " WHERE " + COLUMN_NAME_ACCOUNT_ID + "=? AND " + COLUMN_NAME_UID + "=?";
+
+    /**
+     * Cache of user UID to _id mappings of the current account.
+     */
+    private static final RowIdCache sIdCache = new RowIdCache(ID_CACHE_SIZE);
+
     /**
      * Save user to DB
      *
@@ -114,7 +129,9 @@ public class UserDb implements BaseColumns {
         if (pub != null) {
             values.put(COLUMN_NAME_PUBLIC, BaseDb.serialize(pub));
         }
-        return db.insert(TABLE_NAME, null, values);
+        long id = db.insert(TABLE_NAME, null, values);
+        sIdCache.put(uid, id);
+        return id;
     }
 
     /**
@@ -180,25 +197,30 @@ public class UserDb implements BaseColumns {
      * @return _id of the user
      */
     static long getId(SQLiteDatabase db, String uid) {
-        long id = -1;
-        String sql =
-                "SELECT " + _ID +
-                        " FROM " + TABLE_NAME +
-                        " WHERE " +
-                        COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() +
-                        " AND " +
-                        COLUMN_NAME_UID + "='" + uid + "'";
-        // Log.d(TAG, sql);
-        Cursor c = db.rawQuery(sql, null);
-        if (c != null && c.getCount() > 0) {
-            if (c.moveToFirst()) {
-                id = c.getLong(0);
-            }
-            c.close();
+        long id = sIdCache.getId(uid);
+        if (id <= 0) {
+            // Returns -1 if the user is not found.
+            id = BaseDb.getStatements(db).simpleQueryForLong(SQL_GET_ID,
+                    BaseDb.getInstance().getAccountId(), uid);
+            sIdCache.put(uid, id);
         }
         return id;
     }
 
+    /**
+     * Remove user from the cache of IDs, i.e. if the insertion was rolled back.
+     */
+    static void forgetId(long id) {
+        sIdCache.remove(id);
+    }
+
+    /**
+     * Discard cached user IDs, i.e. when the account is changed or the tables are dropped.
+     */
+    static void clearIdCache() {
+        sIdCache.clear();
+    }
+
     @SuppressWarnings("WeakerAccess")
     public static <Pu> User<Pu> readOne(SQLiteDatabase db, String uid) {
         // Instantiate topic of an appropriate class ('me' or group)
@@ -206,11 +228,11 @@ public class UserDb implements BaseColumns {
         String sql =
                 "SELECT * FROM " + TABLE_NAME +
                         " WHERE " +
-                        COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() +
-                        " AND " +
-                        COLUMN_NAME_UID + "='" + uid + "'";
+                        COLUMN_NAME_ACCOUNT_ID + "=? AND " +
+                        COLUMN_NAME_UID + "=?";
 
-        Cursor c = db.rawQuery(sql, null);
+        Cursor c = db.rawQuery(sql,
+                new String[]{String.valueOf(BaseDb.getInstance().getAccountId()), uid});
         if (c != null && c.getCount() > 0) {
             user = new User<>(uid);
             if (c.moveToFirst()) {
@@ -25,8 +25,8 @@ import co.tinode.tindroid.MessageActivity;
 import co.tinode.tindroid.R;
 import co.tinode.tindroid.UiUtils;
 import co.tinode.tindroid.db.BaseDb;
+import co.tinode.tindroid.media.AvatarThumbnails;
 import co.tinode.tindroid.media.VxCard;
-import co.tinode.tindroid.widgets.RoundImageDrawable;
 import co.tinode.tinodesdk.Storage;
 import co.tinode.tinodesdk.Topic;
 import co.tinode.tinodesdk.User;
@@ -38,15 +38,9 @@ public class FBaseMessagingService extends FirebaseMessagingService {
 
     private static final String TAG = "FBaseMessagingService";
 
-    // Width and height of the large icon (avatar)
-    private static final int AVATAR_SIZE = 128;
-
+    // Round avatar at the size of the large icon, rendered once per avatar.
     private static Bitmap makeLargeIcon(Resources res, Bitmap bmp) {
-        if (bmp != null) {
-            Bitmap scaled = Bitmap.createScaledBitmap(bmp, AVATAR_SIZE, AVATAR_SIZE, false);
-            return new RoundImageDrawable(res, scaled).getRoundedBitmap();
-        }
-        return null;
+        return AvatarThumbnails.get(res, bmp, AvatarThumbnails.NOTIFICATION);
     }
 
     @Override
@@ -5,9 +5,12 @@ import android.graphics.BitmapFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Serializable;
+import java.util.WeakHashMap;
 
 /**
- * Utility class: constructs a square 128x128 Bitmap from bytes/serializes to jpeg bytes
+ * Utility class: constructs a square 128x128 Bitmap from bytes/serializes to jpeg bytes.
+ * The bitmap is decoded when first requested. Photos created from the same byte array share
+ * the decoded bitmap.
  */
 public class AvatarPhoto implements Serializable {
     public byte[] data;
@@ -16,12 +19,15 @@ public class AvatarPhoto implements Serializable {
 
     protected transient Bitmap mImage = null;
 
+    // Bitmaps decoded from avatar bytes. Arrays are compared by identity: cards read from the
+    // AvatarStore share the same array for the same image.
+    private static final WeakHashMap<byte[], Bitmap> sDecoded = new WeakHashMap<>();
+
     public AvatarPhoto() {
     }
 
     public AvatarPhoto(byte[] bits) {
         data = bits;
-        constructBitmap();
     }
 
     public AvatarPhoto(Bitmap bmp) {
@@ -31,13 +37,23 @@ public class AvatarPhoto implements Serializable {
 
     public boolean constructBitmap() {
         if (data != null) {
+            synchronized (sDecoded) {
+                mImage = sDecoded.get(data);
+            }
+            if (mImage != null) {
+                return true;
+            }
+
             Bitmap bmp = BitmapFactory.decodeByteArray(data, 0, data.length);
             if (bmp != null) {
-                mImage = Bitmap.createScaledBitmap(bmp, 128, 128, false);
+                mImage = Bitmap.createScaledBitmap(bmp, 128, 128, true);
                 // createScaledBitmap may return the same object if scaling is not required.
                 if (bmp != mImage) {
                     bmp.recycle();
                 }
+                synchronized (sDecoded) {
+                    sDecoded.put(data, mImage);
+                }
             }
         }
         return mImage != null;
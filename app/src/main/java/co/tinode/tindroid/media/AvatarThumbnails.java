@@ -0,0 +1,88 @@
+package co.tinode.tindroid.media;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.util.SparseArray;
+
+import java.util.WeakHashMap;
+
+import co.tinode.tindroid.widgets.RoundImageDrawable;
+
+/**
+ * Round avatar thumbnails pre-rendered at the sizes the app displays them at: list rows, toolbar
+ * and notification large icon.
+ *
+ * Thumbnails are rendered once per avatar: they are kept for as long as the source bitmap is in use.
+ * A new avatar comes with a new source bitmap, so stale thumbnails are never returned.
+ */
+public class AvatarThumbnails {
+    // Avatar in a list of chats, contacts or members.
+    public static final int LIST_ROW = 0;
+    // Avatar in the toolbar.
+    public static final int TOOLBAR = 1;
+    // Large icon of a notification.
+    public static final int NOTIFICATION = 2;
+
+    private static final int LIST_ROW_SIZE_DP = 48;
+    private static final int TOOLBAR_SIZE_DP = 40;
+
+    // Source bitmap -> thumbnails keyed by size in pixels.
+    private static final WeakHashMap<Bitmap, SparseArray<Bitmap>> sThumbnails = new WeakHashMap<>();
+
+    /**
+     * Get round thumbnail of the avatar. Renders the thumbnail if it's not available yet.
+     *
+     * @param res  resources to get the display density from.
+     * @param src  avatar bitmap.
+     * @param kind place where the thumbnail is displayed: {@link #LIST_ROW}, {@link #TOOLBAR}
+     *             or {@link #NOTIFICATION}.
+     * @return round thumbnail or null if src is null.
+     */
+    public static Bitmap get(Resources res, Bitmap src, int kind) {
+        if (src == null) {
+            return null;
+        }
+
+        int size = getSize(res, kind);
+        synchronized (sThumbnails) {
+            SparseArray<Bitmap> sizes = sThumbnails.get(src);
+            Bitmap thumb = sizes != null ? sizes.get(size) : null;
+            if (thumb != null) {
+                return thumb;
+            }
+        }
+
+        Bitmap thumb = render(res, src, size);
+        synchronized (sThumbnails) {
+            SparseArray<Bitmap> sizes = sThumbnails.get(src);
+            if (sizes == null) {
+                sizes = new SparseArray<>();
+                sThumbnails.put(src, sizes);
+            }
+            sizes.put(size, thumb);
+        }
+        return thumb;
+    }
+
+    private static int getSize(Resources res, int kind) {
+        switch (kind) {
+            case TOOLBAR:
+                return Math.round(TOOLBAR_SIZE_DP * res.getDisplayMetrics().density);
+            case NOTIFICATION:
+                return res.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+            case LIST_ROW:
+            default:
+                return Math.round(LIST_ROW_SIZE_DP * res.getDisplayMetrics().density);
+        }
+    }
+
+    private static Bitmap render(Resources res, Bitmap src, int size) {
+        Bitmap scaled = Bitmap.createScaledBitmap(src, size, size, true);
+        Bitmap thumb = new RoundImageDrawable(res, scaled).getRoundedBitmap();
+        // createScaledBitmap may return the same object if scaling is not required.
+        if (scaled != src) {
+            scaled.recycle();
+        }
+        return thumb;
+    }
+}
@@ -0,0 +1,123 @@
+package co.tinode.tindroid.media;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.collection.LruCache;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import co.tinode.tindroid.ImageLoader;
+
+/**
+ * Decoding of images embedded into Drafty IM entities.
+ *
+ * Images are decoded at the size they are displayed at: bounds are read first, then the image is
+ * subsampled while decoding and only the final small step is done by scaling. Opaque images are
+ * decoded as RGB_565. Decoded images are kept in the {@link ImageLoader} memory cache.
+ */
+public class InlineImages {
+    private static final String TAG = "InlineImages";
+
+    // Images are decoded in background by a small shared pool.
+    private static final ExecutorService sDecoder = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * Get pool of threads for decoding inline images.
+     */
+    static ExecutorService getDecoder() {
+        return sDecoder;
+    }
+
+    /**
+     * Get image from cache or decode it. Safe to call from a background thread.
+     *
+     * @param key      cache key which identifies the image and its display size or null to skip the cache.
+     * @param data     entity data with the image.
+     * @param density  display density.
+     * @param viewport maximum width of the image.
+     * @return decoded bitmap or null if the image cannot be decoded.
+     */
+    static Bitmap get(String key, Map<String, Object> data, float density, int viewport) {
+        LruCache<String, Bitmap> cache = ImageLoader.getBitmapCache();
+        Bitmap bmp = key != null ? cache.get(key) : null;
+        if (bmp == null) {
+            bmp = decode(data, density, viewport);
+            if (bmp != null && key != null) {
+                cache.put(key, bmp);
+            }
+        }
+        return bmp;
+    }
+
+    /**
+     * Decode image and scale it for display density. The image is made no bigger than the viewport.
+     */
+    private static Bitmap decode(Map<String, Object> data, float density, int viewport) {
+        try {
+            Object val = data.get("val");
+            // If the message is unsent, the bits could be raw byte[] as opposed to
+            // base64-encoded.
+            byte[] bits = (val instanceof String) ?
+                    Base64.decode((String) val, Base64.DEFAULT) : (byte[]) val;
+
+            // Read dimensions only.
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(bits, 0, bits.length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                Log.w(TAG, "Broken Image");
+                return null;
+            }
+
+            // Size of the image on screen.
+            float width = options.outWidth * density;
+            float height = options.outHeight * density;
+            float scale = scaleToViewport(width, height, viewport);
+            int dstWidth = Math.max((int) (width * scale), 1);
+            int dstHeight = Math.max((int) (height * scale), 1);
+
+            // Decode no more pixels than necessary: the largest power of 2 which keeps the image
+            // at least as big as it's displayed.
+            int sample = 1;
+            while (options.outWidth / (sample * 2) >= dstWidth && options.outHeight / (sample * 2) >= dstHeight) {
+                sample *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sample;
+            // JPEG has no transparency: use half as much memory per pixel.
+            // HARDWARE bitmaps cannot be used: message text is drawn in a software layer.
+            if ("image/jpeg".equals(data.get("mime"))) {
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+            }
+
+            Bitmap bmp = BitmapFactory.decodeByteArray(bits, 0, bits.length, options);
+            if (bmp == null) {
+                Log.w(TAG, "Broken Image");
+                return null;
+            }
+            if (bmp.getWidth() != dstWidth || bmp.getHeight() != dstHeight) {
+                bmp = Bitmap.createScaledBitmap(bmp, dstWidth, dstHeight, true);
+            }
+            return bmp;
+        } catch (NullPointerException | IllegalArgumentException | ClassCastException ex) {
+            Log.w(TAG, "Broken Image", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Scale factor which makes the image no bigger than the viewport size: viewport width
+     * by 3/4 of the viewport width.
+     */
+    static float scaleToViewport(float width, float height, int viewport) {
+        float scaleX = (width < viewport ? width : viewport) / width;
+        float scaleY = (height < viewport * 0.75f ? height : viewport * 0.75f) / height;
+        return scaleX < scaleY ? scaleX : scaleY;
+    }
+}
@@ -2,9 +2,10 @@ package co.tinode.tindroid.media;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.Color;
 import android.graphics.Rect;
 import android.graphics.Typeface;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import androidx.annotation.NonNull;
 import androidx.appcompat.content.res.AppCompatResources;
@@ -22,8 +23,6 @@ import android.text.style.StyleSpan;
 import android.text.style.SubscriptSpan;
 import android.text.style.TypefaceSpan;
 import android.text.style.URLSpan;
-import android.util.Base64;
-import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
@@ -47,11 +46,22 @@ public class SpanFormatter implements Drafty.Formatter<SpanFormatter.TreeNode> {
     private final float mFontSize;
     private final ClickListener mClicker;
 
-    private SpanFormatter(final TextView container, final ClickListener clicker) {
+    // Decoded inline images by entity data. If null, images are decoded in place.
+    private final Map<Map<String,Object>, Bitmap> mImages;
+    // Images which were not found in mImages. Placeholders are shown instead.
+    private List<Map<String,Object>> mMissingImages = null;
+    // The content contains a form.
+    private boolean mHasForm = false;
+    // Formatted content.
+    private Spanned mResult = null;
+
+    private SpanFormatter(final TextView container, final ClickListener clicker,
+                          final Map<Map<String,Object>, Bitmap> images) {
         mContainer = container;
         mViewport = container.getMaxWidth();
         mFontSize = container.getTextSize();
         mClicker = clicker;
+        mImages = images;
     }
 
     public static Spanned toSpanned(final TextView container, final Drafty content,
@@ -64,10 +74,42 @@ public class SpanFormatter implements Drafty.Formatter<SpanFormatter.TreeNode> {
         }
         // This is needed for button shadows.
         container.setLayerType(View.LAYER_TYPE_SOFTWARE, null);
-        TreeNode result = content.format(new SpanFormatter(container, clicker));
+        SpanFormatter formatter = new SpanFormatter(container, clicker, null);
+        TreeNode result = content.format(formatter);
+        applyContainerStyle(container, formatter.mHasForm);
         return result.toSpanned();
     }
 
+    /**
+     * Format content using pre-decoded inline images. Images not found in the map are
+     * replaced with placeholders and reported by {@link #getMissingImages()}.
+     */
+    static SpanFormatter format(final TextView container, final Drafty content, final ClickListener clicker,
+                                final Map<Map<String,Object>, Bitmap> images) {
+        SpanFormatter formatter = new SpanFormatter(container, clicker, images);
+        formatter.mResult = content.format(formatter).toSpanned();
+        return formatter;
+    }
+
+    Spanned getResult() {
+        return mResult;
+    }
+
+    List<Map<String,Object>> getMissingImages() {
+        return mMissingImages;
+    }
+
+    boolean hasForm() {
+        return mHasForm;
+    }
+
+    // Apply container-wide formatting required by the content.
+    static void applyContainerStyle(TextView container, boolean hasForm) {
+        if (hasForm) {
+            container.setLineSpacing(0, FORM_LINE_SPACING);
+        }
+    }
+
     public static boolean hasClickableSpans(final Drafty content) {
         if (content != null) {
             Drafty.Entity[] entities = content.getEntities();
@@ -98,38 +140,32 @@ public class SpanFormatter implements Drafty.Formatter<SpanFormatter.TreeNode> {
         TreeNode result = null;
         if (data != null) {
             CharacterStyle span = null;
-            DisplayMetrics metrics = ctx.getResources().getDisplayMetrics();
             Bitmap bmp = null;
-            try {
-                Object val = data.get("val");
-                // If the message is unsent, the bits could be raw byte[] as opposed to
-                // base64-encoded.
-                byte[] bits = (val instanceof String) ?
-                        Base64.decode((String) val, Base64.DEFAULT) : (byte[]) val;
-                bmp = BitmapFactory.decodeByteArray(bits, 0, bits.length);
-                // Scale bitmap for display density.
-                float width = bmp.getWidth() * metrics.density;
-                float height = bmp.getHeight() * metrics.density;
-                // Make sure the scaled bitmap is no bigger than the viewport size;
-                float scaleX = (width < mViewport ? width : mViewport) / width;
-                float scaleY = (height < mViewport * 0.75f ? height : mViewport * 0.75f) / height;
-                float scale = scaleX < scaleY ? scaleX : scaleY;
-
-                bmp = Bitmap.createScaledBitmap(bmp, (int)(width * scale), (int)(height * scale), true);
-
-            } catch (NullPointerException | IllegalArgumentException | ClassCastException ex) {
-                Log.w(TAG, "Broken Image", ex);
+            if (mImages == null) {
+                bmp = InlineImages.get(null, data, ctx.getResources().getDisplayMetrics().density, mViewport);
+            } else if (mImages.containsKey(data)) {
+                // Image was decoded in background, possibly unsuccessfully.
+                bmp = mImages.get(data);
+            } else {
+                // Image is not decoded yet: show a placeholder of the same size.
+                if (mMissingImages == null) {
+                    mMissingImages = new ArrayList<>();
+                }
+                mMissingImages.add(data);
+                span = new ImageSpan(placeholder(ctx, data));
             }
 
-            if (bmp == null) {
-                // If the image cannot be decoded for whatever reason, show a 'broken image' icon.
-                Drawable icon = AppCompatResources.getDrawable(ctx, R.drawable.ic_broken_image);
-                if (icon != null) {
-                    icon.setBounds(0, 0, icon.getIntrinsicWidth(), icon.getIntrinsicHeight());
-                    span = new ImageSpan(icon);
+            if (span == null) {
+                if (bmp == null) {
+                    // If the image cannot be decoded for whatever reason, show a 'broken image' icon.
+                    Drawable icon = AppCompatResources.getDrawable(ctx, R.drawable.ic_broken_image);
+                    if (icon != null) {
+                        icon.setBounds(0, 0, icon.getIntrinsicWidth(), icon.getIntrinsicHeight());
+                        span = new ImageSpan(icon);
+                    }
+                } else {
+                    span = new ImageSpan(ctx, bmp);
                 }
-            } else {
-                span = new ImageSpan(ctx, bmp);
             }
 
             if (mClicker != null && bmp != null) {
@@ -150,6 +186,25 @@ public class SpanFormatter implements Drafty.Formatter<SpanFormatter.TreeNode> {
         return result;
     }
 
+    // Empty drawable of the size the image will have once decoded, if the size is known.
+    private Drawable placeholder(Context ctx, Map<String,Object> data) {
+        float density = ctx.getResources().getDisplayMetrics().density;
+        float width = 0, height = 0;
+        try {
+            width = ((Number) data.get("width")).floatValue() * density;
+            height = ((Number) data.get("height")).floatValue() * density;
+        } catch (NullPointerException | ClassCastException ignored) {
+        }
+        if (width <= 0 || height <= 0) {
+            width = mViewport;
+            height = mViewport * 0.75f;
+        }
+        float scale = InlineImages.scaleToViewport(width, height, mViewport);
+        Drawable placeholder = new ColorDrawable(Color.TRANSPARENT);
+        placeholder.setBounds(0, 0, (int) (width * scale), (int) (height * scale));
+        return placeholder;
+    }
+
     private TreeNode handleAttachment(final Context ctx,
                                       @SuppressWarnings("unused") Object unused,
                                       final Map<String,Object> data) {
@@ -307,7 +362,7 @@ public class SpanFormatter implements Drafty.Formatter<SpanFormatter.TreeNode> {
                         if (span != null && span.isEmpty()) {
                             span = null;
                         } else {
-                            mContainer.setLineSpacing(0, FORM_LINE_SPACING);
+                            mHasForm = true;
                         }
                     }
                     break;
@@ -0,0 +1,180 @@
+package co.tinode.tindroid.media;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.view.View;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.collection.LruCache;
+
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.tinode.tinodesdk.model.Drafty;
+
+/**
+ * Cache of messages rendered by {@link SpanFormatter}, so rows scrolled back into view are not
+ * formatted again. Inline images are decoded in background: the message is first rendered with
+ * placeholders, then re-rendered and posted to the view once the images are ready.
+ *
+ * Rendered spans hold references to the click listener, so the cache must not outlive its owner.
+ */
+public class SpannedCache {
+    private static final float MEMORY_PERCENT = 0.05f;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final LruCache<String, Rendered> mCache;
+    // Keys of messages waiting for image decoding. Accessed on UI thread only.
+    private final HashSet<String> mPending = new HashSet<>();
+
+    public SpannedCache() {
+        // Size is measured in kilobytes.
+        int maxSize = Math.round(MEMORY_PERCENT * Runtime.getRuntime().maxMemory() / 1024);
+        mCache = new LruCache<String, Rendered>(maxSize) {
+            @Override
+            protected int sizeOf(@NonNull String key, @NonNull Rendered value) {
+                return value.size;
+            }
+        };
+    }
+
+    /**
+     * Convert message content into Spanned, using cached result if available. Must be called on UI thread.
+     *
+     * @param container view which will display the result.
+     * @param msgId     database ID of the message.
+     * @param content   message content.
+     * @param clicker   click listener for clickable spans, could be null.
+     * @return rendered content, possibly with placeholders in place of images.
+     */
+    public Spanned toSpanned(final TextView container, long msgId, final Drafty content,
+                             final SpanFormatter.ClickListener clicker) {
+        // Remember which message the view displays: the view may be recycled before images are decoded.
+        container.setTag(null);
+        if (content == null) {
+            return new SpannedString("");
+        }
+        if (content.isPlain()) {
+            return new SpannedString(content.toString());
+        }
+        // This is needed for button shadows.
+        container.setLayerType(View.LAYER_TYPE_SOFTWARE, null);
+
+        final String key = msgId + ":" + contentVersion(content) + ":" +
+                container.getMaxWidth() + ":" + (clicker != null);
+        container.setTag(key);
+
+        Rendered rendered = mCache.get(key);
+        if (rendered != null) {
+            SpanFormatter.applyContainerStyle(container, rendered.hasForm);
+            return rendered.text;
+        }
+
+        SpanFormatter formatter = SpanFormatter.format(container, content, clicker,
+                new IdentityHashMap<Map<String, Object>, Bitmap>());
+        SpanFormatter.applyContainerStyle(container, formatter.hasForm());
+        List<Map<String, Object>> missing = formatter.getMissingImages();
+        if (missing == null) {
+            mCache.put(key, new Rendered(formatter.getResult(), formatter.hasForm(), null));
+        } else {
+            decodeImages(container, key, content, clicker, missing);
+        }
+        return formatter.getResult();
+    }
+
+    // Decode images in background then render the content again and show it if the view still
+    // displays the same message.
+    private void decodeImages(TextView container, final String key, final Drafty content,
+                              final SpanFormatter.ClickListener clicker, final List<Map<String, Object>> images) {
+        if (!mPending.add(key)) {
+            // Already decoding.
+            return;
+        }
+
+        final WeakReference<TextView> ref = new WeakReference<>(container);
+        final float density = container.getResources().getDisplayMetrics().density;
+        final int viewport = container.getMaxWidth();
+        InlineImages.getDecoder().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Map<Map<String, Object>, Bitmap> decoded = new IdentityHashMap<>();
+                int i = 0;
+                for (Map<String, Object> data : images) {
+                    // Decoded images are shared through the image cache.
+                    decoded.put(data, InlineImages.get(key + "/" + i, data, density, viewport));
+                    i++;
+                }
+
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPending.remove(key);
+                        TextView view = ref.get();
+                        if (view == null) {
+                            return;
+                        }
+
+                        SpanFormatter formatter = SpanFormatter.format(view, content, clicker, decoded);
+                        Rendered rendered = new Rendered(formatter.getResult(), formatter.hasForm(),
+                                decoded.values());
+                        mCache.put(key, rendered);
+                        if (key.equals(view.getTag())) {
+                            view.setText(rendered.text);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // Cheap fingerprint of the content: changes when text, formatting or entities change.
+    private static int contentVersion(Drafty content) {
+        int hash = content.txt != null ? content.txt.hashCode() : 0;
+        if (content.fmt != null) {
+            for (Drafty.Style st : content.fmt) {
+                hash = hash * 31 + st.at;
+                hash = hash * 31 + st.len;
+                hash = hash * 31 + (st.tp != null ? st.tp.hashCode() : 0);
+                hash = hash * 31 + (st.key != null ? st.key : -1);
+            }
+        }
+        if (content.ent != null) {
+            for (Drafty.Entity ent : content.ent) {
+                if (ent != null) {
+                    hash = hash * 31 + (ent.tp != null ? ent.tp.hashCode() : 0);
+                    hash = hash * 31 + (ent.data != null ? ent.data.size() : 0);
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static class Rendered {
+        final Spanned text;
+        final boolean hasForm;
+        // Estimated size in kilobytes: text and decoded images.
+        final int size;
+
+        Rendered(Spanned text, boolean hasForm, Iterable<Bitmap> images) {
+            this.text = text;
+            this.hasForm = hasForm;
+            long bytes = text.length() * 2;
+            if (images != null) {
+                for (Bitmap bmp : images) {
+                    if (bmp != null) {
+                        bytes += bmp.getByteCount();
+                    }
+                }
+            }
+            this.size = (int) Math.max(bytes / 1024, 1);
+        }
+    }
+}
@@ -4,16 +4,21 @@ import android.graphics.Bitmap;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
+import co.tinode.tindroid.db.AvatarStore;
 import co.tinode.tinodesdk.model.VCard;
 
 
 /**
  * VxCard - contact descriptor.
  * Adds avatar conversion from bits to Android bitmap and back.
+ * When saved to the local database the avatar bits are kept in the {@link AvatarStore}.
  */
-public class VxCard extends VCard {
+public class VxCard extends VCard implements AvatarStore.Holder {
     @JsonIgnore
     public AvatarPhoto avatar;
+    // Hash of the avatar in the AvatarStore. Set only in the database copy of the card,
+    // where it replaces photo.data.
+    public String photoRef;
 
     public VxCard() {
     }
@@ -33,9 +38,44 @@ public class VxCard extends VCard {
     public VxCard copy() {
         VxCard dst = copy(new VxCard(), this);
         dst.avatar = avatar;
+        dst.photoRef = photoRef;
         return dst;
     }
 
+    @Override
+    public Object detachAvatar() {
+        if (photo == null || photo.data == null) {
+            return this;
+        }
+        String hash = AvatarStore.put(photo.data);
+        if (hash == null) {
+            // Failed to save: keep the bits in the card.
+            return this;
+        }
+        // The copy has its own photo.
+        VxCard dst = copy();
+        dst.photo.data = null;
+        dst.photoRef = hash;
+        return dst;
+    }
+
+    @Override
+    public void attachAvatar() {
+        if (photoRef != null) {
+            byte[] bits = AvatarStore.get(photoRef);
+            if (bits != null) {
+                if (photo == null) {
+                    photo = new Photo();
+                }
+                photo.data = bits;
+            } else {
+                // The image is lost, the card will be updated by the server.
+                photo = null;
+            }
+            photoRef = null;
+        }
+    }
+
     @JsonIgnore
     public Bitmap getBitmap() {
         if (avatar == null) {
@@ -54,8 +94,9 @@ public class VxCard extends VCard {
         photo = new Photo(avatar.data);
     }
 
+    // The image is decoded when the bitmap is first requested.
     public void constructBitmap() {
-        if (photo != null) {
+        if (photo != null && photo.data != null) {
             avatar = new AvatarPhoto(photo.data);
         }
     }
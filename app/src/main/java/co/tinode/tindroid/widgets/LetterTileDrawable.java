@@ -12,6 +12,7 @@ import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import androidx.annotation.NonNull;
+import androidx.collection.LruCache;
 import androidx.core.content.ContextCompat;
 import androidx.core.graphics.drawable.DrawableCompat;
 import android.text.TextUtils;
@@ -22,6 +23,8 @@ import co.tinode.tindroid.R;
  * A drawable that encapsulates all the functionality needed to display a letter tile to
  * represent a contact image. Slightly modified from
  * com/android/contacts/common/lettertiles/LetterTileDrawable.java
+ *
+ * Rendered tiles are cached: list rows with the same letter, color and size share one bitmap.
  */
 public class LetterTileDrawable extends Drawable {
     private final String TAG = "LetterTileDrawable";
@@ -37,10 +40,20 @@ public class LetterTileDrawable extends Drawable {
      * Reusable components to avoid new allocations
      */
     private static final Paint sPaint = new Paint();
+    private static final Paint sBitmapPaint = new Paint();
     private static final Rect sRect = new Rect();
     private static final char[] sFirstChar = new char[1];
 
     private static final int INTRINSIC_SIZE = 128;
+    // Size of the cache of rendered tiles in kilobytes.
+    private static final int TILE_CACHE_SIZE = 4 * 1024;
+
+    private static final LruCache<String, Bitmap> sTiles = new LruCache<String, Bitmap>(TILE_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(@NonNull String key, @NonNull Bitmap value) {
+            return Math.max(value.getByteCount() / 1024, 1);
+        }
+    };
     /**
      * Letter tile
      */
@@ -76,6 +89,8 @@ public class LetterTileDrawable extends Drawable {
             DEFAULT_GROUP_AVATAR = getBitmapFromVectorDrawable(context, R.drawable.ic_group_white);
             sPaint.setTextAlign(Align.CENTER);
             sPaint.setAntiAlias(true);
+            sBitmapPaint.setFilterBitmap(true);
+            sBitmapPaint.setDither(true);
         }
         mPaint = new Paint();
         mPaint.setFilterBitmap(true);
@@ -127,17 +142,32 @@ public class LetterTileDrawable extends Drawable {
             return;
         }
         // Draw letter tile.
-        drawLetterTile(canvas);
+        canvas.drawBitmap(getTile(bounds.width(), bounds.height()), bounds.left, bounds.top, mPaint);
+    }
+
+    /**
+     * Get letter tile of the given size from cache or render it.
+     */
+    private Bitmap getTile(final int width, final int height) {
+        final String key = (mLetter != null ? mLetter.toString() : "") + ":" + mContactType + ":" +
+                mColor + ":" + width + "x" + height + ":" + mIsCircle + ":" + mScale + ":" + mOffset;
+        Bitmap tile = sTiles.get(key);
+        if (tile == null) {
+            tile = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            drawLetterTile(new Canvas(tile), new Rect(0, 0, width, height));
+            sTiles.put(key, tile);
+        }
+        return tile;
     }
 
     /**
-     * Draw the bitmap onto the canvas at the current bounds taking into account the current scale.
+     * Draw the bitmap onto the canvas at the given bounds taking into account the current scale.
      */
     private void drawBitmap(final Bitmap bitmap, final int width, final int height,
-                            final Canvas canvas) {
+                            final Canvas canvas, final Rect bounds) {
         // The bitmap should be drawn in the middle of the canvas without changing its width to
         // height ratio.
-        final Rect destRect = copyBounds();
+        final Rect destRect = new Rect(bounds);
         // Crop the destination bounds into a square, scaled and offset as appropriate
         final int halfLength = (int) (mScale * Math.min(destRect.width(), destRect.height()) / 2);
         destRect.set(destRect.centerX() - halfLength,
@@ -148,15 +178,13 @@ public class LetterTileDrawable extends Drawable {
 
         sRect.set(0, 0, width, height);
 
-        canvas.drawBitmap(bitmap, sRect, destRect, mPaint);
+        canvas.drawBitmap(bitmap, sRect, destRect, sBitmapPaint);
     }
 
-    private void drawLetterTile(final Canvas canvas) {
-        // Draw background color.
+    private void drawLetterTile(final Canvas canvas, final Rect bounds) {
+        // Draw background color. Alpha and color filter are applied when the tile is drawn.
         sPaint.setColor(mColor);
-        sPaint.setAlpha(mPaint.getAlpha());
 
-        final Rect bounds = getBounds();
         final int minDimension = Math.min(bounds.width(), bounds.height());
 
         if (mIsCircle) {
@@ -184,7 +212,7 @@ public class LetterTileDrawable extends Drawable {
             final Bitmap bitmap = getBitmapForContactType(mContactType);
 
             drawBitmap(bitmap, bitmap.getWidth(), bitmap.getHeight(),
-                    canvas);
+                    canvas, bounds);
         }
     }
 
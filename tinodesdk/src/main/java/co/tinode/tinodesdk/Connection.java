@@ -4,6 +4,7 @@ import android.util.Log;
 
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.TextFrame;
 import org.java_websocket.handshake.ServerHandshake;
 
 import java.io.IOException;
@@ -173,6 +174,18 @@ public class Connection {
         mWsClient.send(message);
     }
 
+    /**
+     * Send text message already encoded as UTF-8.
+     *
+     * @param message UTF-8 bytes of the message. The buffer is copied before the method returns.
+     */
+    public void send(ByteBuffer message) {
+        // A text frame: WebSocketClient.send(ByteBuffer) would send it as binary.
+        TextFrame frame = new TextFrame();
+        frame.setPayload(message);
+        mWsClient.sendFrame(frame);
+    }
+
     private class TinodeWSClient extends WebSocketClient {
 
         TinodeWSClient(URI endpoint, Map<String,String> headers, int timeout) {
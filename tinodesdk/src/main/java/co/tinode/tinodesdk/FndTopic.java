@@ -7,6 +7,7 @@ import java.util.HashMap;
 
 import co.tinode.tinodesdk.model.Description;
 import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.Fields;
 import co.tinode.tinodesdk.model.MsgServerMeta;
 import co.tinode.tinodesdk.model.MsgSetMeta;
 import co.tinode.tinodesdk.model.ServerMessage;
@@ -63,15 +64,17 @@ public class FndTopic<SP> extends Topic<String,String,SP,String[]> {
     protected void routeMetaSub(MsgServerMeta<String,String,SP,String[]> meta) {
         for (Subscription<SP,String[]> upd : meta.sub) {
             Subscription<SP,String[]> sub = getSubscription(upd.getUnique());
+            int changed;
             if (sub != null) {
-                sub.merge(upd);
+                changed = sub.mergeFields(upd);
             } else {
                 sub = upd;
+                changed = Fields.ALL;
                 addSubToCache(sub);
             }
 
             if (mListener != null) {
-                mListener.onMetaSub(sub);
+                mListener.onMetaSub(sub, changed);
             }
         }
 
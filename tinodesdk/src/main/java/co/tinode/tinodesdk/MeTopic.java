@@ -11,6 +11,7 @@ import java.util.List;
 import co.tinode.tinodesdk.model.Acs;
 import co.tinode.tinodesdk.model.Description;
 import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.Fields;
 import co.tinode.tinodesdk.model.MsgServerMeta;
 import co.tinode.tinodesdk.model.MsgServerPres;
 import co.tinode.tinodesdk.model.PrivateType;
@@ -23,6 +24,9 @@ import co.tinode.tinodesdk.model.Subscription;
 public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
     private static final String TAG = "MeTopic";
 
+    // Handles bursts of {pres} notifications.
+    private final PresenceAggregator mPresence = new PresenceAggregator(this);
+
     public MeTopic(Tinode tinode, Listener<DP,PrivateType,DP,PrivateType> l) {
         super(tinode, Tinode.TOPIC_ME, l);
     }
@@ -87,6 +91,7 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
     void processOneSub(Subscription<DP,PrivateType> sub) {
         // Log.d(TAG, "Sub " + sub.topic + " is " + sub.online);
         Topic topic = mTinode.getTopic(sub.topic);
+        int changed = Fields.ALL;
         if (topic != null) {
             // This is an existing topic.
             if (sub.deleted != null) {
@@ -95,7 +100,7 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
                 topic.persist(false);
             } else {
                 // Update its record in memory and in the database.
-                topic.update(sub);
+                changed = topic.update(sub);
                 // Notify topic to update self.
                 if (topic.mListener != null) {
                     topic.mListener.onContUpdate(sub);
@@ -119,7 +124,7 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
         }
 
         if (mListener != null) {
-            mListener.onMetaSub(sub);
+            mListener.onMetaSub(sub, changed);
         }
     }
 
@@ -132,26 +137,30 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
             switch (what) {
                 case ON: // topic came online
                     topic.setOnline(true);
+                    mPresence.subsChanged();
                     break;
 
                 case OFF: // topic went offline
                     topic.setOnline(false);
                     topic.setLastSeen(new Date());
+                    mPresence.subsChanged();
                     break;
 
                 case MSG: // new message received
                     topic.setSeq(pres.seq);
                     topic.setTouched(new Date());
+                    mPresence.subsChanged();
                     break;
 
                 case UPD: // pub/priv updated
-                    this.getMeta(getMetaGetBuilder().withGetSub(pres.src).build());
+                    mPresence.refetch(pres.src);
                     break;
 
                 case ACS: // access mode changed
                     if (topic.updateAccessMode(pres.dacs) && mStore != null) {
                         mStore.topicUpdate(topic);
                     }
+                    mPresence.subsChanged();
                     break;
 
                 case UA: // user agent changed
@@ -161,24 +170,19 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
                 case RECV: // user's other session marked some messages as received
                     if (topic.getRecv() < pres.seq) {
                         topic.setRecv(pres.seq);
-                        if (mStore != null) {
-                            mStore.setRecv(topic, pres.seq);
-                        }
+                        mPresence.countersChanged(topic, Fields.RECV);
                     }
                     break;
 
                 case READ: // user's other session marked some messages as read
                     if (topic.getRead() < pres.seq) {
                         topic.setRead(pres.seq);
-                        if (mStore != null) {
-                            mStore.setRead(topic, pres.seq);
-                        }
+                        int changed = Fields.READ;
                         if (topic.getRecv() < topic.getRead()) {
                             topic.setRecv(topic.getRead());
-                            if (mStore != null) {
-                                mStore.setRecv(topic, topic.getRead());
-                            }
+                            changed |= Fields.RECV;
                         }
+                        mPresence.countersChanged(topic, changed);
                     }
                     break;
 
@@ -190,6 +194,7 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
                     // If topic is unknown (==null), then we don't care to unregister it.
                     mTinode.stopTrackingTopic(pres.src);
                     topic.persist(false);
+                    mPresence.subsChanged();
                     break;
             }
         } else {
@@ -198,7 +203,7 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
                     Acs acs = new Acs();
                     acs.update(pres.dacs);
                     if (acs.isModeDefined()) {
-                        getMeta(getMetaGetBuilder().withGetSub(pres.src).build());
+                        mPresence.refetch(pres.src);
                     } else {
                         Log.d(TAG, "Unexpected access mode in presence: '" + pres.dacs.want + "'/'" + pres.dacs.given + "'");
                     }
@@ -209,10 +214,8 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
             }
         }
 
+        // Listener is notified of changes to subscriptions once per burst of notifications.
         if (mListener != null) {
-            if (what == MsgServerPres.What.GONE) {
-                mListener.onSubsUpdated();
-            }
             mListener.onPres(pres);
         }
     }
@@ -221,6 +224,9 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
     protected void topicLeft(boolean unsub, int code, String reason) {
         super.topicLeft(unsub, code, reason);
 
+        // Store pending changes now. Subscriptions cannot be refetched after leaving.
+        mPresence.flush();
+
         List<Topic> topics = mTinode.getTopics();
         if (topics != null) {
             for (Topic t : topics) {
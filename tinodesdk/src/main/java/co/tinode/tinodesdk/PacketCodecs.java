@@ -0,0 +1,109 @@
+package co.tinode.tinodesdk;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+
+import co.tinode.tinodesdk.model.ClientMessage;
+import co.tinode.tinodesdk.model.MsgServerCtrl;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.MsgServerInfo;
+import co.tinode.tinodesdk.model.MsgServerPres;
+
+/**
+ * Readers and writers of packets bound to their types in advance, so the mapper does not have
+ * to resolve (de)serializers for every packet.
+ *
+ * Readers of {meta} packets depend on the topic type and are added as topics register types
+ * of their content.
+ */
+class PacketCodecs {
+    // Buffers grown over this size are not kept between packets.
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    final ObjectReader ctrl;
+    final ObjectReader pres;
+    final ObjectReader info;
+    final ObjectReader data;
+
+    private final ObjectMapper mMapper;
+    private final ObjectWriter mClientWriter;
+    private final EnumMap<Topic.TopicType, ObjectReader> mMetaReaders;
+    private ObjectReader mDefaultMetaReader = null;
+
+    // Buffer for serialized outgoing packets.
+    private Buffer mBuffer = new Buffer(INITIAL_BUFFER_SIZE);
+
+    PacketCodecs(ObjectMapper mapper) {
+        mMapper = mapper;
+        mClientWriter = mapper.writerFor(ClientMessage.class);
+        ctrl = mapper.readerFor(MsgServerCtrl.class);
+        pres = mapper.readerFor(MsgServerPres.class);
+        info = mapper.readerFor(MsgServerInfo.class);
+        data = mapper.readerFor(MsgServerData.class);
+        mMetaReaders = new EnumMap<>(Topic.TopicType.class);
+    }
+
+    synchronized void setMetaType(Topic.TopicType type, JavaType packetType) {
+        mMetaReaders.put(type, mMapper.readerFor(packetType));
+    }
+
+    synchronized void setDefaultMetaType(JavaType packetType) {
+        mDefaultMetaReader = mMapper.readerFor(packetType);
+    }
+
+    /**
+     * Get reader of {meta} packets for the given topic type.
+     *
+     * @return reader or null if no type was registered for the topic type and no default is set.
+     */
+    synchronized ObjectReader getMetaReader(Topic.TopicType type) {
+        ObjectReader reader = mMetaReaders.get(type);
+        return reader != null ? reader : mDefaultMetaReader;
+    }
+
+    /**
+     * Serialize message as UTF-8 JSON into a buffer reused between calls.
+     *
+     * @param message message to serialize.
+     * @param sink    consumer of the serialized message. The buffer is only valid until sink returns.
+     */
+    synchronized void write(ClientMessage message, Sink sink) throws IOException {
+        Buffer buffer = mBuffer;
+        buffer.reset();
+        try {
+            mClientWriter.writeValue(buffer, message);
+            sink.accept(buffer.wrap());
+        } finally {
+            if (buffer.capacity() > MAX_BUFFER_SIZE) {
+                // Don't hold on to memory after a large packet, e.g. a message with an image.
+                mBuffer = new Buffer(INITIAL_BUFFER_SIZE);
+            }
+        }
+    }
+
+    interface Sink {
+        void accept(ByteBuffer utf8) throws IOException;
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+
+        ByteBuffer wrap() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
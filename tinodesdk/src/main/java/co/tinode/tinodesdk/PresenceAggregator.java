@@ -0,0 +1,147 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import co.tinode.tinodesdk.model.Fields;
+import co.tinode.tinodesdk.model.MsgGetMeta;
+
+/**
+ * Collects work caused by {pres} notifications to 'me' and does it once per burst, e.g. when
+ * the server sends hundreds of notifications after reconnect.
+ *
+ * The state of topics in memory is updated by 'me' as notifications arrive. Deferred are the requests
+ * to refetch subscriptions, the writes of read/recv values to storage and the notification
+ * of the listener. Repeated notifications from the same topic within a burst are merged.
+ */
+class PresenceAggregator {
+    private static final String TAG = "PresenceAggregator";
+
+    // Notifications received within this time after the first one are handled together, milliseconds.
+    private static final long BURST_WINDOW = 100;
+
+    private static final ScheduledExecutorService sScheduler =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "pres-aggregator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final MeTopic mMe;
+
+    // Topics to refetch subscriptions of.
+    private HashSet<String> mRefetch = new HashSet<>();
+    // Topics with read/recv values to store: mask of Fields.READ and Fields.RECV.
+    private HashMap<Topic, Integer> mCounters = new HashMap<>();
+    // The listener must be told that subscriptions have changed.
+    private boolean mSubsChanged = false;
+    // Flush is scheduled.
+    private boolean mScheduled = false;
+
+    PresenceAggregator(MeTopic me) {
+        mMe = me;
+    }
+
+    /**
+     * Refetch subscription to the topic from the server.
+     */
+    synchronized void refetch(String topicName) {
+        mRefetch.add(topicName);
+        schedule();
+    }
+
+    /**
+     * Store read and/or recv values of the topic.
+     *
+     * @param fields mask of {@link Fields#READ} and {@link Fields#RECV}.
+     */
+    synchronized void countersChanged(Topic topic, int fields) {
+        Integer old = mCounters.get(topic);
+        mCounters.put(topic, old != null ? old | fields : fields);
+        mSubsChanged = true;
+        schedule();
+    }
+
+    /**
+     * Notify the listener that subscriptions have changed.
+     */
+    synchronized void subsChanged() {
+        mSubsChanged = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (!mScheduled) {
+            mScheduled = true;
+            sScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, BURST_WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Do the collected work now.
+     */
+    @SuppressWarnings("unchecked")
+    void flush() {
+        HashSet<String> refetch;
+        HashMap<Topic, Integer> counters;
+        boolean subsChanged;
+        synchronized (this) {
+            refetch = mRefetch;
+            counters = mCounters;
+            subsChanged = mSubsChanged;
+            mRefetch = new HashSet<>();
+            mCounters = new HashMap<>();
+            mSubsChanged = false;
+            mScheduled = false;
+        }
+
+        Storage store = mMe.mStore;
+        if (store != null) {
+            // Writes submitted together are committed in one transaction.
+            for (Map.Entry<Topic, Integer> entry : counters.entrySet()) {
+                Topic topic = entry.getKey();
+                int fields = entry.getValue();
+                if ((fields & Fields.READ) != 0) {
+                    store.setReadAsync(topic, topic.getRead());
+                }
+                if ((fields & Fields.RECV) != 0) {
+                    store.setRecvAsync(topic, topic.getRecv());
+                }
+            }
+        }
+
+        if (!refetch.isEmpty() && mMe.isAttached()) {
+            MsgGetMeta query;
+            if (refetch.size() == 1) {
+                query = mMe.getMetaGetBuilder().withGetSub(refetch.iterator().next()).build();
+            } else {
+                // All subscriptions updated since the last fetch.
+                query = mMe.getMetaGetBuilder().withGetSub().build();
+            }
+            try {
+                mMe.getMeta(query);
+            } catch (Exception ex) {
+                Log.w(TAG, "Failed to refetch " + refetch.size() + " subscriptions", ex);
+            }
+        }
+
+        if (subsChanged && mMe.mListener != null) {
+            mMe.mListener.onSubsUpdated();
+        }
+    }
+}
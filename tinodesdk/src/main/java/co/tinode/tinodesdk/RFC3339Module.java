@@ -0,0 +1,261 @@
+package co.tinode.tinodesdk;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.std.StdScalarDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdScalarSerializer;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Date;
+
+/**
+ * Jackson module which (de)serializes Date fields as RFC3339 timestamps in UTC, like
+ * 2016-09-07T17:29:49.100Z. Milliseconds are optional when parsing.
+ *
+ * Unlike {@link RFC3339Format} the codec keeps no state, so it's safe to use from any thread,
+ * and it reads and writes characters of the JSON buffer directly, without intermediate strings.
+ */
+public class RFC3339Module extends SimpleModule {
+    private static final long MS_PER_DAY = 86400000L;
+    // Length of yyyy-MM-ddTHH:mm:ss.SSSZ
+    private static final int FORMATTED_LENGTH = 24;
+
+    // Buffer for formatting timestamps: one per thread.
+    private static final ThreadLocal<char[]> sBuffer = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[FORMATTED_LENGTH];
+        }
+    };
+
+    public RFC3339Module() {
+        super("RFC3339Module");
+        addSerializer(Date.class, new DateSerializer());
+        addDeserializer(Date.class, new DateDeserializer());
+    }
+
+    /**
+     * Parse RFC3339 timestamp.
+     *
+     * @param text timestamp, such as 2016-09-07T17:29:49.100Z or 2016-09-07T17:29:49Z.
+     * @return parsed date.
+     * @throws ParseException if the text is not a valid timestamp.
+     */
+    public static Date parse(String text) throws ParseException {
+        if (text == null) {
+            throw new ParseException("Timestamp is null", 0);
+        }
+        return new Date(parse(text.toCharArray(), 0, text.length()));
+    }
+
+    /**
+     * Format date as RFC3339 timestamp in UTC with milliseconds.
+     */
+    public static String format(Date date) {
+        char[] buf = sBuffer.get();
+        format(date.getTime(), buf);
+        return new String(buf, 0, FORMATTED_LENGTH);
+    }
+
+    /**
+     * Parse timestamp from a range of characters: yyyy-MM-ddTHH:mm:ss[.fraction](Z|+hh:mm|-hh:mm).
+     * Fractions of a second beyond milliseconds are truncated.
+     *
+     * @return milliseconds since epoch.
+     */
+    static long parse(char[] buf, int offset, int length) throws ParseException {
+        int end = offset + length;
+        int pos = offset;
+        if (length < 20) {
+            throw new ParseException("Timestamp is too short", 0);
+        }
+
+        int year = digits(buf, pos, 4, offset);
+        pos = expect(buf, pos + 4, '-', offset);
+        int month = digits(buf, pos, 2, offset);
+        pos = expect(buf, pos + 2, '-', offset);
+        int day = digits(buf, pos, 2, offset);
+        pos += 2;
+        char sep = buf[pos];
+        if (sep != 'T' && sep != 't' && sep != ' ') {
+            throw new ParseException("Expected 'T'", pos - offset);
+        }
+        pos++;
+        int hour = digits(buf, pos, 2, offset);
+        pos = expect(buf, pos + 2, ':', offset);
+        int minute = digits(buf, pos, 2, offset);
+        pos = expect(buf, pos + 2, ':', offset);
+        int second = digits(buf, pos, 2, offset);
+        pos += 2;
+
+        if (month < 1 || month > 12 || day < 1 || day > 31 ||
+                hour > 23 || minute > 59 || second > 60) {
+            throw new ParseException("Field out of range", 0);
+        }
+
+        int millis = 0;
+        if (pos < end && buf[pos] == '.') {
+            pos++;
+            int start = pos;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+                if (pos - start < 3) {
+                    millis = millis * 10 + (buf[pos] - '0');
+                }
+                pos++;
+            }
+            if (pos == start) {
+                throw new ParseException("Expected fraction of a second", pos - offset);
+            }
+            // Scale .1 and .12 to milliseconds.
+            for (int i = pos - start; i < 3; i++) {
+                millis *= 10;
+            }
+        }
+
+        if (pos >= end) {
+            throw new ParseException("Missing time zone", pos - offset);
+        }
+        int zoneMinutes = 0;
+        char zone = buf[pos];
+        if (zone == 'Z' || zone == 'z') {
+            pos++;
+        } else if (zone == '+' || zone == '-') {
+            if (end - pos < 6) {
+                throw new ParseException("Invalid time zone", pos - offset);
+            }
+            int zh = digits(buf, pos + 1, 2, offset);
+            expect(buf, pos + 3, ':', offset);
+            int zm = digits(buf, pos + 4, 2, offset);
+            zoneMinutes = (zh * 60 + zm) * (zone == '-' ? -1 : 1);
+            pos += 6;
+        } else {
+            throw new ParseException("Invalid time zone", pos - offset);
+        }
+        if (pos != end) {
+            throw new ParseException("Unexpected characters after timestamp", pos - offset);
+        }
+
+        long days = daysFromCivil(year, month, day);
+        return days * MS_PER_DAY +
+                ((hour * 60L + minute - zoneMinutes) * 60L + second) * 1000L + millis;
+    }
+
+    // Format time as yyyy-MM-ddTHH:mm:ss.SSSZ into the first 24 characters of the buffer.
+    static void format(long time, char[] buf) {
+        long days = time / MS_PER_DAY;
+        long ms = time % MS_PER_DAY;
+        if (ms < 0) {
+            days--;
+            ms += MS_PER_DAY;
+        }
+
+        // Civil date from days since epoch, see daysFromCivil.
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+        int secs = (int) (ms / 1000);
+        put(buf, 0, year, 4);
+        buf[4] = '-';
+        put(buf, 5, month, 2);
+        buf[7] = '-';
+        put(buf, 8, day, 2);
+        buf[10] = 'T';
+        put(buf, 11, secs / 3600, 2);
+        buf[13] = ':';
+        put(buf, 14, (secs / 60) % 60, 2);
+        buf[16] = ':';
+        put(buf, 17, secs % 60, 2);
+        buf[19] = '.';
+        put(buf, 20, (int) (ms % 1000), 3);
+        buf[23] = 'Z';
+    }
+
+    // Days since 1970-01-01 of the proleptic Gregorian date.
+    // Algorithm by Howard Hinnant, http://howardhinnant.github.io/date_algorithms.html
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yoe = y - era * 400;
+        long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    private static int digits(char[] buf, int pos, int count, int offset) throws ParseException {
+        int value = 0;
+        for (int i = pos; i < pos + count; i++) {
+            char c = buf[i];
+            if (c < '0' || c > '9') {
+                throw new ParseException("Expected digit", i - offset);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int expect(char[] buf, int pos, char c, int offset) throws ParseException {
+        if (buf[pos] != c) {
+            throw new ParseException("Expected '" + c + "'", pos - offset);
+        }
+        return pos + 1;
+    }
+
+    private static void put(char[] buf, int pos, int value, int count) {
+        for (int i = pos + count - 1; i >= pos; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static class DateSerializer extends StdScalarSerializer<Date> {
+        DateSerializer() {
+            super(Date.class);
+        }
+
+        @Override
+        public void serialize(Date value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            char[] buf = sBuffer.get();
+            format(value.getTime(), buf);
+            gen.writeString(buf, 0, FORMATTED_LENGTH);
+        }
+    }
+
+    private static class DateDeserializer extends StdScalarDeserializer<Date> {
+        DateDeserializer() {
+            super(Date.class);
+        }
+
+        @Override
+        public Date deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            JsonToken t = p.getCurrentToken();
+            if (t == JsonToken.VALUE_STRING) {
+                int length = p.getTextLength();
+                if (length == 0) {
+                    return null;
+                }
+                try {
+                    return new Date(parse(p.getTextCharacters(), p.getTextOffset(), length));
+                } catch (ParseException ex) {
+                    return (Date) ctxt.handleWeirdStringValue(Date.class, p.getText(),
+                            "not a valid RFC3339 timestamp: %s", ex.getMessage());
+                }
+            }
+            if (t == JsonToken.VALUE_NUMBER_INT) {
+                return new Date(p.getLongValue());
+            }
+            return (Date) ctxt.handleUnexpectedToken(Date.class, p);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package co.tinode.tinodesdk;
+
+import java.util.Arrays;
+
+/**
+ * Index of read and received receipts of topic subscribers: values of read and recv of each
+ * subscriber kept in two sorted arrays.
+ *
+ * Counting subscribers who have read or received a message is a binary search. Updating the index
+ * when a subscriber reports a new receipt shifts the part of the array between the old and the new
+ * value, which is usually short because receipts advance to the latest messages.
+ */
+class ReceiptIndex {
+    private static final int INITIAL_CAPACITY = 8;
+
+    // Values of read of all indexed subscribers in ascending order.
+    private int[] mRead;
+    // Values of recv of all indexed subscribers in ascending order.
+    private int[] mRecv;
+    private int mSize;
+
+    ReceiptIndex(int capacity) {
+        capacity = Math.max(capacity, INITIAL_CAPACITY);
+        mRead = new int[capacity];
+        mRecv = new int[capacity];
+        mSize = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Add receipts of a subscriber to the index.
+     */
+    void add(int read, int recv) {
+        if (mSize == mRead.length) {
+            mRead = Arrays.copyOf(mRead, mSize * 2);
+            mRecv = Arrays.copyOf(mRecv, mSize * 2);
+        }
+        insert(mRead, mSize, read);
+        insert(mRecv, mSize, recv);
+        mSize++;
+    }
+
+    /**
+     * Remove receipts of a subscriber from the index.
+     *
+     * @param read value of read the subscriber was added or last updated with.
+     * @param recv value of recv the subscriber was added or last updated with.
+     */
+    void remove(int read, int recv) {
+        if (mSize == 0) {
+            return;
+        }
+        delete(mRead, mSize, read);
+        delete(mRecv, mSize, recv);
+        mSize--;
+    }
+
+    /**
+     * Replace receipts of a subscriber.
+     */
+    void update(int oldRead, int oldRecv, int read, int recv) {
+        move(mRead, mSize, oldRead, read);
+        move(mRecv, mSize, oldRecv, recv);
+    }
+
+    /**
+     * Count subscribers who have read message with the given seq or later.
+     */
+    int countRead(int seq) {
+        return mSize - lowerBound(mRead, mSize, seq);
+    }
+
+    /**
+     * Count subscribers who have received message with the given seq or later.
+     */
+    int countRecv(int seq) {
+        return mSize - lowerBound(mRecv, mSize, seq);
+    }
+
+    // Index of the first element which is not less than value, or size if there is none.
+    private static int lowerBound(int[] arr, int size, int value) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (arr[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Insert value keeping the array sorted. The array must have room for one more element.
+    private static void insert(int[] arr, int size, int value) {
+        int pos = lowerBound(arr, size, value);
+        System.arraycopy(arr, pos, arr, pos + 1, size - pos);
+        arr[pos] = value;
+    }
+
+    // Remove one occurrence of value, or the nearest larger one if the value is not found.
+    private static void delete(int[] arr, int size, int value) {
+        int pos = Math.min(lowerBound(arr, size, value), size - 1);
+        System.arraycopy(arr, pos + 1, arr, pos, size - pos - 1);
+    }
+
+    // Replace one occurrence of oldValue with value, shifting only the elements in between.
+    private static void move(int[] arr, int size, int oldValue, int value) {
+        if (size == 0 || oldValue == value) {
+            return;
+        }
+        int pos = Math.min(lowerBound(arr, size, oldValue), size - 1);
+        if (value > oldValue) {
+            // Shift smaller elements left, past the last one which is less than value.
+            int end = lowerBound(arr, size, value) - 1;
+            System.arraycopy(arr, pos + 1, arr, pos, end - pos);
+            arr[end] = value;
+        } else {
+            int start = lowerBound(arr, size, value);
+            System.arraycopy(arr, start, arr, start + 1, pos - start);
+            arr[start] = value;
+        }
+    }
+}
@@ -35,6 +35,12 @@ public interface Storage {
     long topicAdd(Topic topic);
     /** Incoming change to topic description: the already mutated topic in memory is synchronized to DB */
     boolean topicUpdate(Topic topic);
+    /**
+     * Incoming change to topic description: only the fields in the mask have changed.
+     *
+     * @param changed bit mask of changed fields, see {@link co.tinode.tinodesdk.model.Fields}.
+     */
+    boolean topicUpdate(Topic topic, int changed);
     /** Delete topic */
     boolean topicDelete(Topic topic);
 
@@ -49,6 +55,12 @@ public interface Storage {
     long subAdd(Topic topic, Subscription sub);
     /** Update subscription in a generic topic */
     boolean subUpdate(Topic topic, Subscription sub);
+    /**
+     * Update subscription in a generic topic: only the fields in the mask have changed.
+     *
+     * @param changed bit mask of changed fields, see {@link co.tinode.tinodesdk.model.Fields}.
+     */
+    boolean subUpdate(Topic topic, Subscription sub, int changed);
     /** Add a new subscriber to topic. The new subscriber is being added locally. */
     long subNew(Topic topic, Subscription sub);
     /** Delete existing subscription */
@@ -147,9 +159,33 @@ public interface Storage {
     /** Set read value for a given subscriber */
     boolean msgReadByRemote(Subscription sub, int read);
 
+    /*
+     * Asynchronous variants of the frequent mutations. Mutations are executed in order on a background
+     * thread. The promise is resolved with the value the synchronous variant would return.
+     */
+
+    /** Asynchronous variant of {@link #setRead(Topic, int)} */
+    PromisedReply<Boolean> setReadAsync(Topic topic, int read);
+    /** Asynchronous variant of {@link #setRecv(Topic, int)} */
+    PromisedReply<Boolean> setRecvAsync(Topic topic, int recv);
+    /** Asynchronous variant of {@link #msgRecvByRemote(Subscription, int)} */
+    PromisedReply<Boolean> msgRecvByRemoteAsync(Subscription sub, int recv);
+    /** Asynchronous variant of {@link #msgReadByRemote(Subscription, int)} */
+    PromisedReply<Boolean> msgReadByRemoteAsync(Subscription sub, int read);
+
     /** Retrieve a single message by database id */
     <T extends Message> T getMessageById(Topic topic, long dbMessageId);
 
+    /**
+     * Full-text search of the locally stored messages of the topic.
+     *
+     * @param topic topic to search in.
+     * @param query words to search for; the last word is treated as a prefix.
+     * @param limit maximum number of messages to return.
+     * @return messages ordered by relevance, most relevant first, or null if nothing is found.
+     */
+    <T extends Message> List<T> msgSearch(Topic topic, String query, int limit);
+
     /** Get a list of unsent messages */
     <T extends Iterator<Message> & Closeable> T getQueuedMessages(Topic topic);
     /**
@@ -9,8 +9,10 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.type.TypeFactory;
 
@@ -20,6 +22,8 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -104,12 +108,18 @@ public class Tinode {
         sJsonMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
         sDateFormat = new RFC3339Format();
         sJsonMapper.setDateFormat(sDateFormat);
+        // Date fields are handled by a thread-safe codec which does not go through the DateFormat.
+        sJsonMapper.registerModule(new RFC3339Module());
 
         sTypeFactory = sJsonMapper.getTypeFactory();
     }
 
     private JavaType mDefaultTypeOfMetaPacket = null;
     private HashMap<Topic.TopicType, JavaType> mTypeOfMetaPacket;
+    // Readers and writers bound to packet types.
+    private PacketCodecs mCodecs;
+    // Writes serialized packets to the socket.
+    private PacketCodecs.Sink mSocketSink;
     private MimeTypeResolver mMimeResolver = null;
     private Storage mStore;
     private String mApiKey;
@@ -158,6 +168,17 @@ public class Tinode {
         mListener = listener;
 
         mTypeOfMetaPacket = new HashMap<>();
+        mCodecs = new PacketCodecs(sJsonMapper);
+        mSocketSink = new PacketCodecs.Sink() {
+            @Override
+            public void accept(ByteBuffer utf8) {
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "out: " + new String(utf8.array(), utf8.position(), utf8.remaining(),
+                            StandardCharsets.UTF_8));
+                }
+                mConnection.send(utf8);
+            }
+        };
 
         mFutures = new ConcurrentHashMap<>(16, 0.75f, 4);
 
@@ -688,6 +709,7 @@ public class Tinode {
     public void setDefaultTypeOfMetaPacket(JavaType typeOfPublic, JavaType typeOfPrivate) {
         mDefaultTypeOfMetaPacket = sTypeFactory
                 .constructParametricType(MsgServerMeta.class, typeOfPublic, typeOfPrivate, typeOfPublic, typeOfPrivate);
+        mCodecs.setDefaultMetaType(mDefaultTypeOfMetaPacket);
     }
 
     /**
@@ -718,14 +740,14 @@ public class Tinode {
      */
     public void setTypeOfMetaPacket(String topicName, JavaType typeOfDescPublic, JavaType typeOfDescPrivate,
                                     JavaType typeOfSubPublic, JavaType typeOfSubPrivate) {
-        mTypeOfMetaPacket.put(Topic.getTopicTypeByName(topicName), sTypeFactory
+        putTypeOfMetaPacket(Topic.getTopicTypeByName(topicName), sTypeFactory
                 .constructParametricType(MsgServerMeta.class, typeOfDescPublic,
                         typeOfDescPrivate, typeOfSubPublic, typeOfSubPrivate));
     }
 
     public void setMeTypeOfMetaPacket(JavaType typeOfDescPublic) {
         JavaType priv = sTypeFactory.constructType(PrivateType.class);
-        mTypeOfMetaPacket.put(Topic.TopicType.ME, sTypeFactory
+        putTypeOfMetaPacket(Topic.TopicType.ME, sTypeFactory
                 .constructParametricType(MsgServerMeta.class, typeOfDescPublic, priv, typeOfDescPublic, priv));
     }
 
@@ -734,13 +756,21 @@ public class Tinode {
     }
 
     public void setFndTypeOfMetaPacket(JavaType typeOfSubPublic) {
-        mTypeOfMetaPacket.put(Topic.TopicType.FND, sTypeFactory
+        putTypeOfMetaPacket(Topic.TopicType.FND, sTypeFactory
                 .constructParametricType(MsgServerMeta.class,
                         sTypeFactory.constructType(String.class),
                         sTypeFactory.constructType(String.class), typeOfSubPublic,
                         sTypeFactory.constructType(String[].class)));
     }
 
+    // Save type of {meta} packets and pre-build the reader for it.
+    private void putTypeOfMetaPacket(Topic.TopicType topicType, JavaType type) {
+        // Readers are immutable, no need to build a new one if the type is the same.
+        if (!type.equals(mTypeOfMetaPacket.put(topicType, type))) {
+            mCodecs.setMetaType(topicType, type);
+        }
+    }
+
     public void setFndTypeOfMetaPacket(Class<?> typeOfSubPublic) {
         setFndTypeOfMetaPacket(sTypeFactory.constructType(typeOfSubPublic));
     }
@@ -1023,7 +1053,7 @@ public class Tinode {
         // If topics were not loaded earlier, load them now.
         loadTopics();
         mAuthToken = ctrl.getStringParam("token", null);
-        mAuthTokenExpires = sDateFormat.parse(ctrl.getStringParam("expires", ""));
+        mAuthTokenExpires = RFC3339Module.parse(ctrl.getStringParam("expires", ""));
         if (ctrl.code < 300) {
             mConnAuth = true;
             if (mListener != null) {
@@ -1362,7 +1392,17 @@ public class Tinode {
      * @param message string to write to websocket
      */
     protected void send(ClientMessage message) throws JsonProcessingException {
-        send(Tinode.getJsonMapper().writeValueAsString(message));
+        if (mConnection == null || !mConnection.isConnected()) {
+            throw new NotConnectedException("No connection");
+        }
+        // Serialized directly to UTF-8 bytes: no intermediate String.
+        try {
+            mCodecs.write(message, mSocketSink);
+        } catch (JsonProcessingException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw JsonMappingException.fromUnexpectedIOE(ex);
+        }
     }
 
     protected PromisedReply<ServerMessage> sendWithPromise(ClientMessage message, String id) {
@@ -1629,30 +1669,37 @@ public class Tinode {
             while (parser.nextToken() != JsonToken.END_OBJECT) {
                 String name = parser.getCurrentName();
                 parser.nextToken();
-                JsonNode node = mapper.readTree(parser);
+                // Packets other than {meta} don't depend on the topic: read them without building a tree.
                 switch (name) {
                     case "ctrl":
-                        msg.ctrl = mapper.readValue(node.traverse(), MsgServerCtrl.class);
+                        msg.ctrl = mCodecs.ctrl.readValue(parser);
                         break;
                     case "pres":
-                        msg.pres = mapper.readValue(node.traverse(), MsgServerPres.class);
+                        msg.pres = mCodecs.pres.readValue(parser);
                         break;
                     case "info":
-                        msg.info = mapper.readValue(node.traverse(), MsgServerInfo.class);
+                        msg.info = mCodecs.info.readValue(parser);
                         break;
                     case "data":
-                        msg.data = mapper.readValue(node.traverse(), MsgServerData.class);
+                        msg.data = mCodecs.data.readValue(parser);
                         break;
                     case "meta":
+                        JsonNode node = mapper.readTree(parser);
                         if (node.has("topic")) {
-                            msg.meta = mapper.readValue(node.traverse(),
-                                    getTypeOfMetaPacket(node.get("topic").asText()));
+                            ObjectReader reader = mCodecs.getMetaReader(
+                                    Topic.getTopicTypeByName(node.get("topic").asText()));
+                            if (reader != null) {
+                                msg.meta = reader.readValue(node.traverse());
+                            } else {
+                                Log.w(TAG, "Failed to parse {meta}: unknown type of packet");
+                            }
                         } else {
                             Log.w(TAG, "Failed to parse {meta}: missing topic name");
                         }
                         break;
                     default:  // Unrecognized field, ignore
                         Log.w(TAG, "Unknown field in packet: '" + name + "'");
+                        parser.skipChildren();
                         break;
                 }
             }
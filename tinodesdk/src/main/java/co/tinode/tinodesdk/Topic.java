@@ -21,6 +21,7 @@ import co.tinode.tinodesdk.model.AcsHelper;
 import co.tinode.tinodesdk.model.Defacs;
 import co.tinode.tinodesdk.model.Description;
 import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.Fields;
 import co.tinode.tinodesdk.model.LastSeen;
 import co.tinode.tinodesdk.model.MetaSetDesc;
 import co.tinode.tinodesdk.model.MetaSetSub;
@@ -56,6 +57,10 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
     // Timestamp of the last update to subscriptions. Default: Oct 25, 2014 05:06:02 UTC, incidentally equal
     // to the first few digits of sqrt(2)
     protected Date mSubsUpdated = null;
+    // Read and received receipts of subscribers other than the current user. Built on first use.
+    private ReceiptIndex mReceipts = null;
+    // ID of the user excluded from mReceipts.
+    private String mReceiptsExclude = null;
 
     // Server-provided values:
     // Tags: user and topic discovery
@@ -214,28 +219,29 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      * Update topic parameters from a Subscription object. Called by MeTopic.
      *
      * @param sub updated topic parameters
+     * @return bit mask of changed fields, see {@link Fields}.
      */
-    protected void update(Subscription<SP, SR> sub) {
-        boolean changed;
+    protected int update(Subscription<SP, SR> sub) {
+        int changed = 0;
 
         if (mLastSeen == null) {
-            changed = true;
+            changed = Fields.SEEN;
             mLastSeen = sub.seen;
-        } else {
-            changed = mLastSeen.merge(sub.seen);
+        } else if (mLastSeen.merge(sub.seen)) {
+            changed = Fields.SEEN;
         }
 
-        if (mDesc.merge(sub)) {
-            changed = true;
-        }
+        changed |= mDesc.mergeFields(sub);
 
-        if (changed && mStore != null) {
-            mStore.topicUpdate(this);
+        if (changed != 0 && mStore != null) {
+            mStore.topicUpdate(this, changed);
         }
 
         if (sub.online != null) {
             mOnline = sub.online;
         }
+
+        return changed;
     }
 
     /**
@@ -244,8 +250,9 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      * @param desc updated topic parameters
      */
     protected void update(Description<DP, DR> desc) {
-        if (mDesc.merge(desc) && mStore != null) {
-            mStore.topicUpdate(this);
+        int changed = mDesc.mergeFields(desc);
+        if (changed != 0 && mStore != null) {
+            mStore.topicUpdate(this, changed);
         }
     }
 
@@ -290,7 +297,7 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
             }
 
             if (changed && mStore != null) {
-                mStore.topicUpdate(this);
+                mStore.topicUpdate(this, Fields.ACS);
             }
         }
 
@@ -308,7 +315,7 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         } else {
             sub.acs.merge(acs);
             if (mStore != null) {
-                mStore.subUpdate(this, sub);
+                mStore.subUpdate(this, sub, Fields.ACS);
             }
         }
     }
@@ -320,8 +327,9 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      * @param desc updated topic parameters
      */
     protected void update(MetaSetDesc<DP, DR> desc) {
-        if (mDesc.merge(desc) && mStore != null) {
-            mStore.topicUpdate(this);
+        int changed = mDesc.mergeFields(desc);
+        if (changed != 0 && mStore != null) {
+            mStore.topicUpdate(this, changed);
         }
     }
 
@@ -1093,7 +1101,7 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         }
 
         if (mListener != null) {
-            mListener.onMetaSub(sub);
+            mListener.onMetaSub(sub, Fields.ALL);
             mListener.onSubsUpdated();
         }
 
@@ -1107,10 +1115,10 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
                     @Override
                     public PromisedReply<ServerMessage> onSuccess(ServerMessage result) {
                         if (mStore != null) {
-                            mStore.subUpdate(Topic.this, sub);
+                            mStore.subUpdate(Topic.this, sub, Fields.ACS);
                         }
                         if (mListener != null) {
-                            mListener.onMetaSub(sub);
+                            mListener.onMetaSub(sub, Fields.ACS);
                             mListener.onSubsUpdated();
                         }
                         return null;
@@ -1365,7 +1373,14 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
             mSubs = new HashMap<>();
         }
 
-        mSubs.put(sub.user, sub);
+        Subscription<SP, SR> old = mSubs.put(sub.user, sub);
+        if (mReceipts != null && !sub.user.equals(mReceiptsExclude)) {
+            if (old != null) {
+                mReceipts.update(old.read, old.recv, sub.read, sub.recv);
+            } else {
+                mReceipts.add(sub.read, sub.recv);
+            }
+        }
     }
 
     /**
@@ -1375,7 +1390,44 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      */
     protected void removeSubFromCache(Subscription<SP, SR> sub) {
         if (mSubs != null) {
-            mSubs.remove(sub.user);
+            Subscription<SP, SR> old = mSubs.remove(sub.user);
+            if (old != null && mReceipts != null && !old.user.equals(mReceiptsExclude)) {
+                mReceipts.remove(old.read, old.recv);
+            }
+        }
+    }
+
+    /**
+     * Get index of receipts of subscribers other than the current user, build it if necessary.
+     * Building the index loads all subscriptions into memory.
+     *
+     * @return index or null if subscriptions are not available.
+     */
+    private ReceiptIndex getReceipts() {
+        String me = mTinode.getMyId();
+        if (mReceipts != null && (me == null ? mReceiptsExclude == null : me.equals(mReceiptsExclude))) {
+            return mReceipts;
+        }
+
+        Collection<Subscription<SP, SR>> subs = getSubscriptions();
+        if (subs == null) {
+            return null;
+        }
+        ReceiptIndex receipts = new ReceiptIndex(subs.size());
+        for (Subscription sub : subs) {
+            if (!sub.user.equals(me)) {
+                receipts.add(sub.read, sub.recv);
+            }
+        }
+        mReceipts = receipts;
+        mReceiptsExclude = me;
+        return receipts;
+    }
+
+    // Update receipts of a cached subscriber in the index.
+    private void updateReceipts(Subscription<SP, SR> sub, int oldRead, int oldRecv) {
+        if (mReceipts != null && !sub.user.equals(mReceiptsExclude)) {
+            mReceipts.update(oldRead, oldRecv, sub.read, sub.recv);
         }
     }
 
@@ -1410,19 +1462,13 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      * @return count of recepients who claim to have received the message
      */
     public int msgRecvCount(int seq) {
-        int count = 0;
         if (seq > 0) {
-            String me = mTinode.getMyId();
-            Collection<Subscription<SP, SR>> subs = getSubscriptions();
-            if (subs != null) {
-                for (Subscription sub : subs) {
-                    if (!sub.user.equals(me) && sub.recv >= seq) {
-                        count++;
-                    }
-                }
+            ReceiptIndex receipts = getReceipts();
+            if (receipts != null) {
+                return receipts.countRecv(seq);
             }
         }
-        return count;
+        return 0;
     }
 
     /**
@@ -1432,19 +1478,13 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      * @return count of recepients who claim to have read the message.
      */
     public int msgReadCount(int seq) {
-        int count = 0;
         if (seq > 0) {
-            String me = mTinode.getMyId();
-            Collection<Subscription<SP, SR>> subs = getSubscriptions();
-            if (subs != null) {
-                for (Subscription sub : subs) {
-                    if (!sub.user.equals(me) && sub.read >= seq) {
-                        count++;
-                    }
-                }
+            ReceiptIndex receipts = getReceipts();
+            if (receipts != null) {
+                return receipts.countRead(seq);
             }
         }
-        return count;
+        return 0;
     }
 
     public TopicType getTopicType() {
@@ -1534,6 +1574,7 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         // I.e. sub.user is set, but sub.topic is equal to current topic.
 
         Subscription<SP, SR> sub;
+        int changed;
 
         if (newsub.deleted != null) {
             if (mStore != null) {
@@ -1542,15 +1583,22 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
             removeSubFromCache(newsub);
 
             sub = newsub;
+            changed = Fields.DELETED;
         } else {
             sub = getSubscription(newsub.user);
             if (sub != null) {
-                sub.merge(newsub);
+                int oldRead = sub.read, oldRecv = sub.recv;
+                changed = sub.mergeFields(newsub);
+                if ((changed & (Fields.READ | Fields.RECV)) != 0) {
+                    updateReceipts(sub, oldRead, oldRecv);
+                }
                 if (mStore != null) {
-                    mStore.subUpdate(this, sub);
+                    // Called even if nothing has changed: the subscription may need to be marked as synced.
+                    mStore.subUpdate(this, sub, changed);
                 }
             } else {
                 sub = newsub;
+                changed = Fields.ALL;
                 addSubToCache(sub);
                 if (mStore != null) {
                     mStore.subAdd(this, sub);
@@ -1560,10 +1608,10 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
             mTinode.updateUser(sub);
 
             // If this is a change to user's own permissions, update topic too.
-            if (mTinode.isMe(sub.user) && sub.acs != null) {
+            if (mTinode.isMe(sub.user) && sub.acs != null && (changed & Fields.ACS) != 0) {
                 setAccessMode(sub.acs);
                 if (mStore != null) {
-                    mStore.topicUpdate(this);
+                    mStore.topicUpdate(this, Fields.ACS);
                 }
 
                 // Notify listener that topic has updated.
@@ -1574,7 +1622,7 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         }
 
         if (mListener != null) {
-            mListener.onMetaSub(sub);
+            mListener.onMetaSub(sub, changed);
         }
     }
 
@@ -1684,11 +1732,12 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         if (!info.what.equals(Tinode.NOTE_KP)) {
             Subscription<SP, SR> sub = getSubscription(info.from);
             if (sub != null) {
+                int oldRead = sub.read, oldRecv = sub.recv;
                 switch (info.what) {
                     case Tinode.NOTE_RECV:
                         sub.recv = info.seq;
                         if (mStore != null) {
-                            mStore.msgRecvByRemote(sub, info.seq);
+                            mStore.msgRecvByRemoteAsync(sub, info.seq);
                         }
                         break;
                     case Tinode.NOTE_READ:
@@ -1696,16 +1745,17 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
                         if (sub.recv < sub.read) {
                             sub.recv = sub.read;
                             if (mStore != null) {
-                                mStore.msgRecvByRemote(sub, info.seq);
+                                mStore.msgRecvByRemoteAsync(sub, info.seq);
                             }
                         }
                         if (mStore != null) {
-                            mStore.msgReadByRemote(sub, info.seq);
+                            mStore.msgReadByRemoteAsync(sub, info.seq);
                         }
                         break;
                     default:
                         break;
                 }
+                updateReceipts(sub, oldRead, oldRecv);
             }
 
             // If this is an update from the current user, update the contact with the new count too.
@@ -1799,6 +1849,16 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         public void onMetaSub(Subscription<SP, SR> sub) {
         }
 
+        /**
+         * {meta what="sub"} message received, and this is one of the subs.
+         * Calls {@link #onMetaSub(Subscription)} unless overridden.
+         *
+         * @param changed bit mask of fields changed by the update, see {@link Fields}.
+         */
+        public void onMetaSub(Subscription<SP, SR> sub, int changed) {
+            onMetaSub(sub);
+        }
+
         /**
          * {meta what="desc"} message received
          */
@@ -1,13 +1,25 @@
 package co.tinode.tinodesdk.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Map;
 
 /**
  * Access mode.
  */
+@JsonSerialize(using = Acs.Serializer.class)
+@JsonDeserialize(using = Acs.Deserializer.class)
 public class Acs implements Serializable {
     public enum Side {
         MODE(0), WANT(1), GIVEN(2);
@@ -20,6 +32,12 @@ public class Acs implements Serializable {
         public int val() {return val;}
     }
 
+    // Packed representation: each side takes PACKED_SIDE_BITS bits, see pack().
+    private static final int PACKED_SIDE_BITS = 9;
+    private static final int PACKED_SIDE_MASK = (1 << PACKED_SIDE_BITS) - 1;
+    private static final int PACKED_INVALID = 1;
+    private static final int PACKED_OFFSET = 2;
+
     AcsHelper given = null;
     AcsHelper want = null;
     AcsHelper mode = null;
@@ -362,10 +380,116 @@ public class Acs implements Serializable {
         return AcsHelper.diff(given, want);
     }
 
+    /**
+     * Pack access mode into an integer, e.g. for storing in a database.
+     *
+     * @return packed mode; 0 if neither side is set.
+     */
+    public int pack() {
+        return packSide(mode) | (packSide(want) << PACKED_SIDE_BITS) |
+                (packSide(given) << (2 * PACKED_SIDE_BITS));
+    }
+
+    /**
+     * Create access mode from the value returned by {@link #pack()}.
+     */
+    public static Acs unpack(int packed) {
+        Acs acs = new Acs();
+        acs.mode = unpackSide(packed);
+        acs.want = unpackSide(packed >>> PACKED_SIDE_BITS);
+        acs.given = unpackSide(packed >>> (2 * PACKED_SIDE_BITS));
+        return acs;
+    }
+
+    // 0 for null, 1 for invalid mode, mode bits + 2 otherwise.
+    private static int packSide(AcsHelper ah) {
+        if (ah == null) {
+            return 0;
+        }
+        int bits = ah.getBits();
+        return bits == AcsHelper.MODE_INVALID ? PACKED_INVALID : (bits & AcsHelper.MODE_MASK) + PACKED_OFFSET;
+    }
+
+    private static AcsHelper unpackSide(int packed) {
+        int val = packed & PACKED_SIDE_MASK;
+        if (val == 0) {
+            return null;
+        }
+        return new AcsHelper(val == PACKED_INVALID ? AcsHelper.MODE_INVALID : val - PACKED_OFFSET);
+    }
+
     @Override
     public String toString() {
         return "{\"given\":" + (given != null ? " \"" + given.toString() + "\"" : " null") +
                 ", \"want\":" + (want != null ? " \"" + want.toString() + "\"" : " null") +
                 ", \"mode\":" + (mode != null ? " \"" + mode.toString() + "\"}" : " null}");
     }
+
+    /**
+     * Writes defined sides as {"given":"JRWP","want":"JRWP","mode":"JRWP"} using cached mode strings.
+     */
+    static class Serializer extends StdSerializer<Acs> {
+        Serializer() {
+            super(Acs.class);
+        }
+
+        @Override
+        public void serialize(Acs acs, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartObject();
+            writeSide(gen, "given", acs.given);
+            writeSide(gen, "want", acs.want);
+            writeSide(gen, "mode", acs.mode);
+            gen.writeEndObject();
+        }
+
+        private static void writeSide(JsonGenerator gen, String name, AcsHelper ah) throws IOException {
+            if (ah != null && ah.isDefined()) {
+                gen.writeStringField(name, ah.toString());
+            }
+        }
+    }
+
+    /**
+     * Reads sides straight from the characters of the parser, without creating strings.
+     */
+    static class Deserializer extends StdDeserializer<Acs> {
+        Deserializer() {
+            super(Acs.class);
+        }
+
+        @Override
+        public Acs deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            if (p.getCurrentToken() != JsonToken.START_OBJECT) {
+                return (Acs) ctxt.handleUnexpectedToken(Acs.class, p);
+            }
+
+            Acs acs = new Acs();
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                JsonToken t = p.nextToken();
+                if (t != JsonToken.VALUE_STRING) {
+                    // Nulls and values of unexpected type are ignored.
+                    p.skipChildren();
+                    continue;
+                }
+
+                AcsHelper ah = new AcsHelper(AcsHelper.decode(p.getTextCharacters(),
+                        p.getTextOffset(), p.getTextLength()));
+                switch (name) {
+                    case "given":
+                        acs.given = ah;
+                        break;
+                    case "want":
+                        acs.want = ah;
+                        break;
+                    case "mode":
+                        acs.mode = ah;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return acs;
+        }
+    }
 }
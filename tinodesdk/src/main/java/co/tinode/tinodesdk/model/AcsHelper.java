@@ -3,7 +3,6 @@ package co.tinode.tinodesdk.model;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import java.io.Serializable;
-import java.util.StringTokenizer;
 
 /**
  * Helper class for access mode parser/generator.
@@ -22,7 +21,16 @@ public class AcsHelper implements Serializable {
     private static final int MODE_NONE = 0; // No access, requests to gain access are processed normally (N)
 
     // Invalid mode to indicate an error
-    private static final int MODE_INVALID = 0x100000;
+    static final int MODE_INVALID = 0x100000;
+
+    // All valid modes have only these bits set.
+    static final int MODE_MASK = 0xFF;
+
+    private static final char[] MODE_LETTERS = new char[]{'J', 'R', 'W', 'P', 'A', 'S', 'D', 'O'};
+
+    // Flyweight cache of encoded modes: there are only 256 of them, so each is encoded once
+    // and shared by all instances.
+    private static final String[] sEncoded = new String[MODE_MASK + 1];
 
     private int a;
 
@@ -42,6 +50,11 @@ public class AcsHelper implements Serializable {
         this.a = a != null ? a : MODE_INVALID;
     }
 
+    // Internal representation of the mode: a combination of MODE_* bits or MODE_INVALID.
+    int getBits() {
+        return a;
+    }
+
     @Override
     public String toString() {
         return encode(a);
@@ -122,75 +135,104 @@ public class AcsHelper implements Serializable {
     }
 
     private static int decode(String mode) {
-        if (mode == null || mode.length() == 0) {
+        if (mode == null) {
             return MODE_INVALID;
         }
+        return decode(mode, 0, mode.length());
+    }
 
+    /**
+     * Decode mode from a range of characters, such as the buffer of a JSON parser.
+     */
+    static int decode(char[] buf, int offset, int length) {
         int m0 = MODE_NONE;
-
-        for (char c : mode.toCharArray()) {
-            switch (c) {
-                case 'J':
-                case 'j':
-                    m0 |= MODE_JOIN;
-                    continue;
-                case 'R':
-                case 'r':
-                    m0 |= MODE_READ;
-                    continue;
-                case 'W':
-                case 'w':
-                    m0 |= MODE_WRITE;
-                    continue;
-                case 'A':
-                case 'a':
-                    m0 |= MODE_APPROVE;
-                    continue;
-                case 'S':
-                case 's':
-                    m0 |= MODE_SHARE;
-                    continue;
-                case 'D':
-                case 'd':
-                    m0 |= MODE_DELETE;
-                    continue;
-                case 'P':
-                case 'p':
-                    m0 |= MODE_PRES;
-                    continue;
-                case 'O':
-                case 'o':
-                    m0 |= MODE_OWNER;
-                    continue;
-                case 'N':
-                case 'n':
-                    return MODE_NONE;
-                default:
-                    return MODE_INVALID;
+        if (length == 0) {
+            return MODE_INVALID;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            int bit = decodeChar(buf[i]);
+            if (bit == MODE_NONE || bit == MODE_INVALID) {
+                return bit;
             }
+            m0 |= bit;
         }
+        return m0;
+    }
 
+    private static int decode(String mode, int start, int end) {
+        int m0 = MODE_NONE;
+        if (start >= end) {
+            return MODE_INVALID;
+        }
+        for (int i = start; i < end; i++) {
+            int bit = decodeChar(mode.charAt(i));
+            if (bit == MODE_NONE || bit == MODE_INVALID) {
+                return bit;
+            }
+            m0 |= bit;
+        }
         return m0;
     }
 
+    // Bit of the mode letter, MODE_NONE for 'N' or MODE_INVALID.
+    private static int decodeChar(char c) {
+        switch (c) {
+            case 'J':
+            case 'j':
+                return MODE_JOIN;
+            case 'R':
+            case 'r':
+                return MODE_READ;
+            case 'W':
+            case 'w':
+                return MODE_WRITE;
+            case 'A':
+            case 'a':
+                return MODE_APPROVE;
+            case 'S':
+            case 's':
+                return MODE_SHARE;
+            case 'D':
+            case 'd':
+                return MODE_DELETE;
+            case 'P':
+            case 'p':
+                return MODE_PRES;
+            case 'O':
+            case 'o':
+                return MODE_OWNER;
+            case 'N':
+            case 'n':
+                return MODE_NONE;
+            default:
+                return MODE_INVALID;
+        }
+    }
+
     private static String encode(Integer val) {
         // Need to distinguish between "not set" and "no access"
         if (val == null || val == MODE_INVALID) {
             return "";
         }
 
-        if (val == MODE_NONE) {
-            return "N";
-        }
-
-        StringBuilder res = new StringBuilder(6);
-        char[] modes = new char[]{'J', 'R', 'W', 'P', 'A', 'S', 'D', 'O'};
-        for (int i = 0; i < modes.length; i++) {
-            if ((val & (1 << i)) != 0) {
-                res.append(modes[i]);
+        int bits = val & MODE_MASK;
+        String res = sEncoded[bits];
+        if (res == null) {
+            if (bits == MODE_NONE) {
+                res = "N";
+            } else {
+                StringBuilder sb = new StringBuilder(MODE_LETTERS.length);
+                for (int i = 0; i < MODE_LETTERS.length; i++) {
+                    if ((bits & (1 << i)) != 0) {
+                        sb.append(MODE_LETTERS[i]);
+                    }
+                }
+                res = sb.toString();
             }
+            // Racy but benign: all threads compute the same string.
+            sEncoded[bits] = res;
         }
-        return res.toString();
+        return res;
     }
 
     /**
@@ -206,19 +248,23 @@ public class AcsHelper implements Serializable {
             return val;
         }
 
-        int m0;
         char action = umode.charAt(0);
         if (action == '+' || action == '-') {
             int val0 = val;
-            StringTokenizer parts = new StringTokenizer(umode, "-+", true);
-            while (parts.hasMoreTokens()) {
-                action = parts.nextToken().charAt(0);
-                if (parts.hasMoreTokens()) {
-                    m0 = decode(parts.nextToken());
-                } else {
+            int len = umode.length();
+            int i = 0;
+            while (i < len) {
+                action = umode.charAt(i++);
+                int start = i;
+                while (i < len && umode.charAt(i) != '+' && umode.charAt(i) != '-') {
+                    i++;
+                }
+                if (start == len) {
+                    // Trailing action without letters.
                     break;
                 }
 
+                int m0 = decode(umode, start, i);
                 if (m0 == MODE_INVALID) {
                     throw new IllegalArgumentException();
                 }
@@ -228,7 +274,7 @@ public class AcsHelper implements Serializable {
 
                 if (action == '+') {
                     val0 |= m0;
-                } else if (action == '-') {
+                } else {
                     val0 &= ~m0;
                 }
             }
@@ -36,110 +36,109 @@ public class Description<DP,DR> implements Serializable {
      * @param desc object to copy.
      */
     public boolean merge(Description<DP,DR> desc) {
+        return mergeFields(desc) != 0;
+    }
+
+    /**
+     * Copy non-null values to this object.
+     *
+     * @param desc object to copy.
+     * @return bit mask of changed fields, see {@link Fields}.
+     */
+    public int mergeFields(Description<DP,DR> desc) {
         int changed = 0;
 
         if (created == null && desc.created != null) {
             created = desc.created;
-            changed ++;
+            changed |= Fields.CREATED;
         }
         if (desc.updated != null && (updated == null || updated.before(desc.updated))) {
             updated = desc.updated;
-            changed ++;
+            changed |= Fields.UPDATED;
         }
         if (desc.touched != null && (touched == null || touched.before(desc.touched))) {
             touched = desc.touched;
-            changed ++;
-        }
-
-        if (desc.defacs != null) {
-            if (defacs == null) {
-                defacs = desc.defacs;
-                changed ++;
-            } else {
-                changed += defacs.merge(desc.defacs) ? 1 : 0;
-            }
+            changed |= Fields.TOUCHED;
         }
 
-        if (desc.acs != null) {
-            if (acs == null) {
-                acs = desc.acs;
-                changed++;
-            } else {
-                changed += acs.merge(desc.acs) ? 1 : 0;
-            }
-        }
+        changed |= mergeDefacs(desc.defacs);
+        changed |= mergeAcs(desc.acs);
 
         if (desc.seq > seq) {
             seq = desc.seq;
-            changed ++;
+            changed |= Fields.SEQ;
         }
         if (desc.read > read) {
             read = desc.read;
-            changed ++;
+            changed |= Fields.READ;
         }
         if (desc.recv > recv) {
             recv = desc.recv;
-            changed ++;
+            changed |= Fields.RECV;
         }
         if (desc.clear > clear) {
             clear = desc.clear;
-            changed ++;
+            changed |= Fields.CLEAR;
         }
 
         if (desc.pub != null) {
             pub = Tinode.isNull(desc.pub) ? null : desc.pub;
+            changed |= Fields.PUB;
         }
 
         if (desc.priv != null) {
             priv = Tinode.isNull(desc.priv) ? null : desc.priv;
+            changed |= Fields.PRIV;
         }
 
-        return changed > 0;
+        return changed;
     }
 
     /**
      * Merge subscription into a description
      */
     public <SP,SR> boolean merge(Subscription<SP,SR> sub) {
+        return mergeFields(sub) != 0;
+    }
+
+    /**
+     * Merge subscription into a description
+     *
+     * @return bit mask of changed fields, see {@link Fields}.
+     */
+    public <SP,SR> int mergeFields(Subscription<SP,SR> sub) {
         int changed = 0;
 
         if (sub.updated != null && (updated == null || updated.before(sub.updated))) {
             updated = sub.updated;
-            changed++;
+            changed |= Fields.UPDATED;
         }
 
         if (sub.touched != null && (touched == null || touched.before(sub.touched))) {
             touched = sub.touched;
-            changed ++;
+            changed |= Fields.TOUCHED;
         }
 
-        if (sub.acs != null) {
-            if (acs == null) {
-                acs = sub.acs;
-                changed++;
-            } else {
-                changed += acs.merge(sub.acs) ? 1 : 0;
-            }
-        }
+        changed |= mergeAcs(sub.acs);
 
         if (sub.seq > seq) {
             seq = sub.seq;
-            changed++;
+            changed |= Fields.SEQ;
         }
 
         if (sub.read > read) {
             read = sub.read;
-            changed++;
+            changed |= Fields.READ;
         }
 
         if (sub.recv > recv) {
             recv = sub.recv;
-            changed++;
+            changed |= Fields.RECV;
         }
 
         if (sub.clear > clear) {
             clear = sub.clear;
-            changed++;
+            changed |= Fields.CLEAR;
         }
 
         if (sub.pub != null) {
@@ -147,41 +146,65 @@ public class Description<DP,DR> implements Serializable {
             // This is intentional behavior to catch cases of wrong assignment.
             //noinspection unchecked
             pub = (DP) (Tinode.isNull(sub.pub) ? null : sub.pub);
-            changed++;
+            changed |= Fields.PUB;
         }
 
         if (sub.priv != null) {
             try {
                 //noinspection unchecked
                 priv = (DR) (Tinode.isNull(sub.priv) ? null : sub.priv);
-                changed++;
+                changed |= Fields.PRIV;
             } catch (ClassCastException ignored) {}
 
         }
 
-        return changed > 0;
+        return changed;
     }
 
     public boolean merge(MetaSetDesc<DP,DR> desc) {
-        int changed = 0;
+        return mergeFields(desc) != 0;
+    }
 
-        if (desc.defacs != null) {
-            if (defacs == null) {
-                defacs = desc.defacs;
-                changed ++;
-            } else {
-                changed += defacs.merge(desc.defacs) ? 1 : 0;
-            }
-        }
+    /**
+     * Merge changes confirmed by the server after {meta set}.
+     *
+     * @return bit mask of changed fields, see {@link Fields}.
+     */
+    public int mergeFields(MetaSetDesc<DP,DR> desc) {
+        int changed = mergeDefacs(desc.defacs);
 
         if (desc.pub != null) {
             pub = Tinode.isNull(desc.pub) ? null : desc.pub;
+            changed |= Fields.PUB;
         }
 
         if (desc.priv != null) {
             priv = Tinode.isNull(desc.priv) ? null : desc.priv;
+            changed |= Fields.PRIV;
         }
 
-        return changed > 0;
+        return changed;
+    }
+
+    private int mergeDefacs(Defacs da) {
+        if (da == null) {
+            return 0;
+        }
+        if (defacs == null) {
+            defacs = da;
+            return Fields.DEFACS;
+        }
+        return defacs.merge(da) ? Fields.DEFACS : 0;
+    }
+
+    private int mergeAcs(Acs a) {
+        if (a == null) {
+            return 0;
+        }
+        if (acs == null) {
+            acs = a;
+            return Fields.ACS;
+        }
+        return acs.merge(a) ? Fields.ACS : 0;
     }
 }
@@ -139,9 +139,8 @@ public class Drafty implements Serializable {
     }
 
     // Detect starts and ends of formatting spans. Unformatted spans are
-    // ignored at this stage.
-    private static List<Span> spannify(String original, Pattern re, String type) {
-        List<Span> spans = new ArrayList<>();
+    // ignored at this stage. Found spans are added to the list.
+    private static void spannify(String original, Pattern re, String type, List<Span> spans) {
         Matcher matcher = re.matcher(original);
         while (matcher.find()) {
             Span s = new Span();
@@ -152,7 +151,58 @@ public class Drafty implements Serializable {
             s.type = type;
             spans.add(s);
         }
-        return spans;
+    }
+
+    // Scan the string once and find which of the inline styles and entities may be present.
+    // Returns a bit mask: bits 0-3 are set if the string contains at least two markup characters
+    // of the style at the same index in INLINE_STYLE_NAME, bits 4-6 are set if the string contains
+    // the character required by the entity at the same index in ENTITY_NAME.
+    // Expressions which cannot match are skipped, most lines need no regex at all.
+    private static int scanMarkup(String line) {
+        int strong = 0, em = 0, del = 0, code = 0;
+        int mask = 0;
+        for (int i = 0, len = line.length(); i < len; i++) {
+            switch (line.charAt(i)) {
+                case '*': strong++; break;
+                case '_': em++; break;
+                case '~': del++; break;
+                case '`': code++; break;
+                case '.': mask |= 1 << INLINE_STYLE_NAME.length; break;
+                case '@': mask |= 1 << (INLINE_STYLE_NAME.length + 1); break;
+                case '#': mask |= 1 << (INLINE_STYLE_NAME.length + 2); break;
+                default:
+            }
+        }
+        mask |= (strong > 1 ? 1 : 0) | (em > 1 ? 1 << 1 : 0) | (del > 1 ? 1 << 2 : 0) | (code > 1 ? 1 << 3 : 0);
+        return mask;
+    }
+
+    // Break input into individual lines, same as content.split("\\r?\\n") but without a regex.
+    // Trailing empty lines are dropped.
+    private static List<String> splitLines(String content) {
+        int start = 0;
+        int len = content.length();
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < len; i++) {
+            if (content.charAt(i) == '\n') {
+                int end = i > start && content.charAt(i - 1) == '\r' ? i - 1 : i;
+                lines.add(content.substring(start, end));
+                start = i + 1;
+            }
+        }
+
+        if (lines.isEmpty()) {
+            // No line breaks: the content is a single line, even if empty.
+            lines.add(content);
+            return lines;
+        }
+
+        lines.add(content.substring(start));
+        int count = lines.size();
+        while (count > 0 && lines.get(count - 1).isEmpty()) {
+            count--;
+        }
+        return lines.subList(0, count);
     }
 
     // Take a string and defined earlier style spans, re-compose them into a tree where each leaf is
@@ -240,11 +290,12 @@ public class Drafty implements Serializable {
         }
 
 
-        Block block = new Block("");
+        Block block = new Block();
+        StringBuilder txt = new StringBuilder();
         List<Style> ranges = new ArrayList<>();
         for (Span chunk : chunks) {
             if (chunk.text == null) {
-                Block drafty = draftify(chunk.children, block.txt.length() + startAt);
+                Block drafty = draftify(chunk.children, txt.length() + startAt);
                 if (drafty != null) {
                     chunk.text = drafty.txt;
                     if (drafty.fmt != null) {
@@ -254,14 +305,15 @@ public class Drafty implements Serializable {
             }
 
             if (chunk.type != null) {
-                ranges.add(new Style(chunk.type, block.txt.length() + startAt, chunk.text.length()));
+                ranges.add(new Style(chunk.type, txt.length() + startAt, chunk.text.length()));
             }
 
             if (chunk.text != null) {
-                block.txt += chunk.text;
+                txt.append(chunk.text);
             }
         }
 
+        block.txt = txt.toString();
         if (ranges.size() > 0) {
             block.fmt = ranges;
         }
@@ -270,10 +322,14 @@ public class Drafty implements Serializable {
     }
 
     // Get a list of entities from a text.
-    private static List<ExtractedEnt> extractEntities(String line) {
+    // Only entities with bits set in the mask are extracted, see scanMarkup().
+    private static List<ExtractedEnt> extractEntities(String line, int mask) {
         List<ExtractedEnt> extracted = new ArrayList<>();
 
         for (int i = 0; i < ENTITY_NAME.length; i++) {
+            if ((mask & (1 << (INLINE_STYLE_NAME.length + i))) == 0) {
+                continue;
+            }
             Matcher matcher = ENTITY_PROC[i].re.matcher(line);
             while (matcher.find()) {
                 ExtractedEnt ee = new ExtractedEnt();
@@ -291,7 +347,7 @@ public class Drafty implements Serializable {
 
     public static Drafty parse(String content) {
         // Break input into individual lines. Format cannot span multiple lines.
-        String lines[] = content.split("\\r?\\n");
+        List<String> lines = splitLines(content);
         List<Block> blks = new ArrayList<>();
         List<Entity> refs = new ArrayList<>();
 
@@ -300,9 +356,12 @@ public class Drafty implements Serializable {
         List<ExtractedEnt> entities;
         for (String line : lines) {
             spans.clear();
+            int mask = scanMarkup(line);
             // Select styled spans.
             for (int i = 0;i < INLINE_STYLE_NAME.length; i++) {
-                spans.addAll(spannify(line, INLINE_STYLE_RE[i], INLINE_STYLE_NAME[i]));
+                if ((mask & (1 << i)) != 0) {
+                    spannify(line, INLINE_STYLE_RE[i], INLINE_STYLE_NAME[i], spans);
+                }
             }
 
             Block b;
@@ -318,12 +377,14 @@ public class Drafty implements Serializable {
 
                 // Convert line into a block.
                 b = draftify(spans, 0);
+                // Markup is removed, some entities may no longer be possible.
+                mask = scanMarkup(b.txt);
             } else {
                 b = new Block(line);
             }
 
             // Extract entities from the string already cleared of markup.
-            entities = extractEntities(b.txt);
+            entities = extractEntities(b.txt, mask);
             // Normalize entities by splitting them into spans and references.
             for (ExtractedEnt ent : entities) {
                 // Check if the entity has been indexed already
@@ -780,10 +841,26 @@ public class Drafty implements Serializable {
         return formatter.apply(null, null, forEach(txt, 0, txt.length(), spans, formatter));
     }
 
-    private String toPlainText() {
-        return "{txt: '" + txt + "'," +
-                "fmt: " + Arrays.toString(fmt) + "," +
-                "ent: " + Arrays.toString(ent) + "}";
+    /**
+     * Convert Drafty to plain text suitable for full-text indexing: text without markup
+     * followed by the names of attached files and images, if any.
+     *
+     * @return plain text representation of the content.
+     */
+    public String toPlainText() {
+        StringBuilder sb = new StringBuilder(txt != null ? txt : "");
+        if (ent != null) {
+            for (Entity e : ent) {
+                if (e == null || e.data == null || !("EX".equals(e.tp) || "IM".equals(e.tp))) {
+                    continue;
+                }
+                Object name = e.data.get("name");
+                if (name instanceof String) {
+                    sb.append(' ').append((String) name);
+                }
+            }
+        }
+        return sb.toString();
     }
 
     public static class Style implements Serializable, Comparable<Style> {
@@ -0,0 +1,29 @@
+package co.tinode.tinodesdk.model;
+
+/**
+ * Bit masks of fields of {@link Description} and {@link Subscription} changed by a merge.
+ * Storage uses them to update only the changed columns, listeners to refresh only what has changed.
+ */
+public final class Fields {
+    public static final int CREATED = 1;
+    public static final int UPDATED = 1 << 1;
+    public static final int TOUCHED = 1 << 2;
+    public static final int DELETED = 1 << 3;
+    public static final int USER = 1 << 4;
+    public static final int TOPIC = 1 << 5;
+    public static final int ACS = 1 << 6;
+    public static final int DEFACS = 1 << 7;
+    public static final int SEQ = 1 << 8;
+    public static final int READ = 1 << 9;
+    public static final int RECV = 1 << 10;
+    public static final int CLEAR = 1 << 11;
+    public static final int PUB = 1 << 12;
+    public static final int PRIV = 1 << 13;
+    public static final int SEEN = 1 << 14;
+
+    // All fields: the object is new or it's not known what has changed.
+    public static final int ALL = (1 << 15) - 1;
+
+    private Fields() {
+    }
+}
@@ -58,79 +58,92 @@ public class Subscription<SP,SR> implements LocalData, Serializable {
      * Merge two subscriptions.
      */
     public boolean merge(Subscription<SP,SR> sub) {
+        return mergeFields(sub) != 0;
+    }
+
+    /**
+     * Merge two subscriptions.
+     *
+     * @return bit mask of changed fields, see {@link Fields}.
+     */
+    public int mergeFields(Subscription<SP,SR> sub) {
         int changed = 0;
 
         if (user == null && sub.user != null && !sub.user.equals("")) {
             user = sub.user;
-            changed ++;
+            changed |= Fields.USER;
         }
 
         if ((sub.updated != null) && (updated == null || updated.before(sub.updated))) {
             updated = sub.updated;
+            changed |= Fields.UPDATED;
 
             if (sub.pub != null) {
                 pub = sub.pub;
+                changed |= Fields.PUB;
             }
-
-            changed ++;
         } else if (pub == null && sub.pub != null) {
             pub = sub.pub;
+            changed |= Fields.PUB;
         }
 
         if ((sub.touched != null) && (touched == null || touched.before(sub.touched))) {
             touched = sub.touched;
+            changed |= Fields.TOUCHED;
         }
 
         if (sub.deleted != null) {
             deleted = sub.deleted;
+            changed |= Fields.DELETED;
         }
 
         if (sub.acs != null) {
             if (acs == null) {
                 acs = new Acs(sub.acs);
-                changed++;
-            } else {
-                changed += acs.merge(sub.acs) ? 1 : 0;
+                changed |= Fields.ACS;
+            } else if (acs.merge(sub.acs)) {
+                changed |= Fields.ACS;
             }
         }
 
         if (sub.read > read) {
             read = sub.read;
-            changed ++;
+            changed |= Fields.READ;
         }
         if (sub.recv > recv) {
             recv = sub.recv;
-            changed ++;
+            changed |= Fields.RECV;
         }
         if (sub.clear > clear) {
             clear = sub.clear;
-            changed ++;
+            changed |= Fields.CLEAR;
         }
 
         if (sub.priv != null) {
             priv = sub.priv;
+            changed |= Fields.PRIV;
         }
         online = sub.online;
 
         if ((topic == null || topic.equals("")) && sub.topic != null && !sub.topic.equals("")) {
             topic = sub.topic;
-            changed ++;
+            changed |= Fields.TOPIC;
         }
         if (sub.seq > seq) {
             seq = sub.seq;
-            changed ++;
+            changed |= Fields.SEQ;
         }
 
         if (sub.seen != null) {
             if (seen == null) {
                 seen = sub.seen;
-                changed ++;
-            } else {
-                changed += seen.merge(sub.seen) ? 1 : 0;
+                changed |= Fields.SEEN;
+            } else if (seen.merge(sub.seen)) {
+                changed |= Fields.SEEN;
             }
         }
 
-        return changed > 0;
+        return changed;
     }
 
     /**